@@ -0,0 +1,100 @@
+package uk.co.hillion.jake.virtualtests.benchmarks;
+
+import uk.co.hillion.jake.virtualtests.providers.Node;
+import uk.co.hillion.jake.virtualtests.providers.Proxmox;
+import uk.co.hillion.jake.virtualtests.structure.Blueprint;
+import uk.co.hillion.jake.virtualtests.structure.BridgeRequest;
+import uk.co.hillion.jake.virtualtests.structure.Distribution;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A Proxmox provider wired to a {@link MockProxmox} and a {@link MockSsh}. */
+public class MockCluster implements AutoCloseable {
+  private static final int TemplateId = 9000;
+
+  private final MockProxmox api;
+  private final MockSsh ssh;
+  private final Proxmox provider;
+
+  public MockCluster(long taskMillis) throws IOException {
+    api = new MockProxmox(taskMillis, TemplateId);
+    try {
+      ssh = new MockSsh();
+    } catch (IOException | RuntimeException e) {
+      api.close();
+      throw e;
+    }
+
+    provider =
+        new Proxmox(
+            new Proxmox.ProxmoxAuth(api.getHost(), "pve", "root@pam", "bench", "secret"),
+            new Proxmox.ProxmoxConfig()
+                .registerTemplate(Distribution.Debian10, TemplateId)
+                .setManagementBridge("vmbr0")
+                .setManagementNetmask(24)
+                .setInitialManagementIp(InetAddress.getByName(MockSsh.FirstAddress))
+                .setInitialVmId(100)
+                .setSshPort(ssh.getPort()),
+            false);
+  }
+
+  public Proxmox getProvider() {
+    return provider;
+  }
+
+  /**
+   * A blueprint of identical nodes, each of which starts and runs one command during setup. At most
+   * {@link MockSsh#Addresses} nodes can be reached at once.
+   */
+  public static Blueprint blueprint(int nodes, int bridges) {
+    List<Template> templates = new ArrayList<>(nodes);
+    for (int i = 0; i < nodes; i++) {
+      templates.add(
+          new Template(Distribution.Debian10) {
+            private final List<SetupStage> setup =
+                List.of(
+                    new SetupStage(
+                        (env, node) -> {
+                          node.start();
+                          node.mustSsh("true").close();
+                        }));
+
+            @Override
+            public List<SetupStage> getSetup() {
+              return setup;
+            }
+          });
+    }
+
+    List<BridgeRequest> bridgeRequests = new ArrayList<>(bridges);
+    for (int i = 0; i < bridges; i++) {
+      bridgeRequests.add(new BridgeRequest());
+    }
+
+    return new Blueprint() {
+      @Override
+      public List<Template> getNodes() {
+        return templates;
+      }
+
+      @Override
+      public List<BridgeRequest> getBridges() {
+        return bridgeRequests;
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      provider.close();
+    } finally {
+      ssh.close();
+      api.close();
+    }
+  }
+}
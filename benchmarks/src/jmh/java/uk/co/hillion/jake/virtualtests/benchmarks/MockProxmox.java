@@ -0,0 +1,255 @@
+package uk.co.hillion.jake.virtualtests.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * An in-process stand-in for the parts of the Proxmox VE API the provider uses, keeping VMs,
+ * bridges and tasks in memory. Every task finishes a fixed time after it is created, to model the
+ * latency of a real cluster.
+ */
+public class MockProxmox implements AutoCloseable {
+  /** The client addresses the standard Proxmox API port. */
+  public static final int Port = 8006;
+
+  private static final String Password = "virtualtests";
+  private static final Pattern NewId = Pattern.compile("newid\\W+(\\d+)");
+  private static final Pattern Iface = Pattern.compile("iface\\W+(\\w+)");
+
+  private final HttpsServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final long taskMillis;
+
+  private final Map<Integer, String> vms = new ConcurrentHashMap<>();
+  private final Set<String> networks = ConcurrentHashMap.newKeySet();
+  private final Map<String, Long> tasks = new ConcurrentHashMap<>();
+  private final AtomicInteger taskCount = new AtomicInteger();
+
+  public MockProxmox(long taskMillis, int... templates) throws IOException {
+    this.taskMillis = taskMillis;
+    for (int t : templates) {
+      vms.put(t, "stopped");
+    }
+    networks.add("vmbr0");
+
+    server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), Port), 0);
+    server.setHttpsConfigurator(new HttpsConfigurator(selfSigned()));
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  public String getHost() {
+    return InetAddress.getLoopbackAddress().getHostAddress();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String[] path =
+        exchange.getRequestURI().getPath().replaceFirst("^/api2/json/", "").split("/");
+    String body;
+    try (InputStream in = exchange.getRequestBody()) {
+      body =
+          URLDecoder.decode(
+              new String(in.readAllBytes(), StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    String data;
+    try {
+      data = route(method, path, body);
+    } catch (RuntimeException e) {
+      data = null;
+    }
+
+    if (data == null) {
+      respond(exchange, 501, "{\"data\":null}");
+    } else {
+      respond(exchange, 200, "{\"data\":" + data + "}");
+    }
+  }
+
+  /** Handle a request, returning the JSON of its data or null if it is not supported. */
+  private String route(String method, String[] path, String body) {
+    if (path.length < 3 || !path[0].equals("nodes")) {
+      return null;
+    }
+    String node = path[1];
+
+    if (path[2].equals("qemu")) {
+      if (path.length == 3 && method.equals("GET")) {
+        return vms.entrySet().stream()
+            .map(e -> String.format("{\"vmid\":%d,\"status\":\"%s\"}", e.getKey(), e.getValue()))
+            .collect(Collectors.joining(",", "[", "]"));
+      }
+
+      int id = Integer.parseInt(path[3]);
+      String action = String.join("/", Arrays.copyOfRange(path, 4, path.length));
+      switch (method + " " + action) {
+        case "POST clone":
+          Matcher m = NewId.matcher(body);
+          if (!m.find()) {
+            return null;
+          }
+          vms.put(Integer.parseInt(m.group(1)), "stopped");
+          return task(node, "qmclone");
+        case "PUT config":
+        case "POST config":
+          return "null";
+        case "GET status/current":
+          return String.format("{\"vmid\":%d,\"status\":\"%s\"}", id, vms.get(id));
+        case "POST status/start":
+          vms.put(id, "running");
+          return task(node, "qmstart");
+        case "POST status/stop":
+        case "POST status/shutdown":
+          vms.put(id, "stopped");
+          return task(node, "qmstop");
+        case "DELETE ":
+          vms.remove(id);
+          return task(node, "qmdestroy");
+        default:
+          return null;
+      }
+    }
+
+    if (path[2].equals("network")) {
+      switch (method) {
+        case "GET":
+          return networks.stream()
+              .map(n -> String.format("{\"iface\":\"%s\",\"type\":\"bridge\"}", n))
+              .collect(Collectors.joining(",", "[", "]"));
+        case "POST":
+          Matcher m = Iface.matcher(body);
+          if (!m.find()) {
+            return null;
+          }
+          networks.add(m.group(1));
+          return "null";
+        case "PUT":
+          return task(node, "srvreload");
+        case "DELETE":
+          networks.remove(path[3]);
+          return "null";
+        default:
+          return null;
+      }
+    }
+
+    if (path[2].equals("tasks") && path.length == 5 && path[4].equals("status")) {
+      Long done = tasks.get(path[3]);
+      if (done == null) {
+        return null;
+      }
+      return System.currentTimeMillis() >= done
+          ? "{\"status\":\"stopped\",\"exitstatus\":\"OK\"}"
+          : "{\"status\":\"running\"}";
+    }
+
+    return null;
+  }
+
+  private String task(String node, String type) {
+    String upid =
+        String.format(
+            "UPID:%s:%08X:00000000:%08X:%s::root@pam:",
+            node, taskCount.incrementAndGet(), System.currentTimeMillis() / 1000, type);
+    tasks.put(upid, System.currentTimeMillis() + taskMillis);
+    return "\"" + upid + "\"";
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /** Generate a throwaway self-signed certificate with keytool, as the JDK has no public API. */
+  private static SSLContext selfSigned() throws IOException {
+    Path directory = Files.createTempDirectory("virtualtests-mock");
+    Path keystore = directory.resolve("keystore.p12");
+    try {
+      Process keytool =
+          new ProcessBuilder(
+                  Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                  "-genkeypair",
+                  "-alias",
+                  "mock",
+                  "-keyalg",
+                  "RSA",
+                  "-keysize",
+                  "2048",
+                  "-dname",
+                  "CN=localhost",
+                  "-validity",
+                  "1",
+                  "-storetype",
+                  "PKCS12",
+                  "-keystore",
+                  keystore.toString(),
+                  "-storepass",
+                  Password,
+                  "-keypass",
+                  Password)
+              .redirectErrorStream(true)
+              .start();
+      keytool.getInputStream().readAllBytes();
+      if (keytool.waitFor() != 0) {
+        throw new IOException("keytool failed");
+      }
+
+      KeyStore store = KeyStore.getInstance("PKCS12");
+      try (InputStream in = Files.newInputStream(keystore)) {
+        store.load(in, Password.toCharArray());
+      }
+
+      KeyManagerFactory keys = KeyManagerFactory.getInstance("SunX509");
+      keys.init(store, Password.toCharArray());
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(keys.getKeyManagers(), null, null);
+      return context;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    } finally {
+      Files.deleteIfExists(keystore);
+      Files.deleteIfExists(directory);
+    }
+  }
+}
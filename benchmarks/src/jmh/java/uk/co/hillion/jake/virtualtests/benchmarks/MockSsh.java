@@ -0,0 +1,143 @@
+package uk.co.hillion.jake.virtualtests.benchmarks;
+
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An embedded ssh server standing in for the guests of {@link MockProxmox}, answering every
+ * management address of the first {@link #Addresses} VM ids with in-process commands:
+ *
+ * <ul>
+ *   <li>{@code true} and {@code sync} exit 0 without output
+ *   <li>{@code zero N} writes N zero bytes to stdout
+ *   <li>{@code echo ...} writes its arguments and a newline to stdout
+ * </ul>
+ *
+ * Anything else exits 127. Any client key is accepted.
+ */
+public class MockSsh implements AutoCloseable {
+  public static final int Addresses = 32;
+  public static final String FirstAddress = "127.0.1.0";
+
+  private final SshServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final int port;
+
+  public MockSsh() throws IOException {
+    // Every address must share a port, so pick one that is free on the first.
+    try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getByName(FirstAddress))) {
+      port = probe.getLocalPort();
+    }
+
+    List<String> hosts = new ArrayList<>(Addresses);
+    for (int i = 0; i < Addresses; i++) {
+      hosts.add("127.0.1." + i);
+    }
+
+    server = SshServer.setUpDefaultServer();
+    server.setHost(String.join(",", hosts));
+    server.setPort(port);
+    server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+    server.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+    server.setCommandFactory((channel, command) -> new InProcessCommand(command));
+    server.start();
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.stop(true);
+    executor.shutdownNow();
+  }
+
+  private class InProcessCommand implements Command {
+    private final String command;
+
+    private OutputStream stdout;
+    private OutputStream stderr;
+    private ExitCallback callback;
+
+    private InProcessCommand(String command) {
+      this.command = command;
+    }
+
+    @Override
+    public void setInputStream(InputStream in) {}
+
+    @Override
+    public void setOutputStream(OutputStream out) {
+      this.stdout = out;
+    }
+
+    @Override
+    public void setErrorStream(OutputStream err) {
+      this.stderr = err;
+    }
+
+    @Override
+    public void setExitCallback(ExitCallback callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void start(ChannelSession channel, org.apache.sshd.server.Environment env) {
+      executor.execute(
+          () -> {
+            int code;
+            try {
+              code = run();
+              stdout.flush();
+              stderr.flush();
+            } catch (IOException e) {
+              code = 255;
+            }
+            callback.onExit(code);
+          });
+    }
+
+    private int run() throws IOException {
+      String[] args = command.trim().split("\\s+", 2);
+      switch (args[0]) {
+        case "true":
+        case "sync":
+          return 0;
+        case "zero":
+          byte[] chunk = new byte[64 * 1024];
+          long remaining = Long.parseLong(args[1]);
+          while (remaining > 0) {
+            int n = (int) Math.min(chunk.length, remaining);
+            stdout.write(chunk, 0, n);
+            remaining -= n;
+          }
+          return 0;
+        case "echo":
+          stdout.write(((args.length > 1 ? args[1] : "") + "\n").getBytes(StandardCharsets.UTF_8));
+          return 0;
+        default:
+          stderr.write((args[0] + ": command not found\n").getBytes(StandardCharsets.UTF_8));
+          return 127;
+      }
+    }
+
+    @Override
+    public void destroy(ChannelSession channel) {}
+  }
+}
@@ -0,0 +1,54 @@
+package uk.co.hillion.jake.virtualtests.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.co.hillion.jake.virtualtests.structure.Blueprint;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of building and closing an environment with {@link
+ * uk.co.hillion.jake.virtualtests.providers.Proxmox#build}. With tasks that finish immediately
+ * this is the provider's own overhead; with a task latency it shows how well the build overlaps
+ * the cluster's work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProvisionBenchmark {
+  @Param({"1", "4", "16"})
+  public int nodes;
+
+  @Param({"0", "1"})
+  public int bridges;
+
+  @Param({"0", "100"})
+  public long taskMillis;
+
+  private MockCluster cluster;
+  private Blueprint blueprint;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    cluster = new MockCluster(taskMillis);
+    blueprint = MockCluster.blueprint(nodes, bridges);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    cluster.close();
+  }
+
+  @Benchmark
+  public void buildAndClose() throws Exception {
+    cluster.getProvider().build(blueprint).close();
+  }
+}
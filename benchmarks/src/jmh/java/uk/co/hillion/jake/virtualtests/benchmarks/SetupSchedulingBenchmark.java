@@ -0,0 +1,101 @@
+package uk.co.hillion.jake.virtualtests.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.co.hillion.jake.virtualtests.providers.Provider;
+import uk.co.hillion.jake.virtualtests.providers.SetupGraph;
+import uk.co.hillion.jake.virtualtests.structure.Distribution;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of scheduling setup stages with {@link SetupGraph}, with stages that do nothing. Stages
+ * are either barriers, one order per stage index, or each depends on the previous stage of the
+ * next node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SetupSchedulingBenchmark {
+  private static final int Parallelism = 16;
+
+  @Param({"4", "32"})
+  public int nodes;
+
+  @Param({"8", "64"})
+  public int stages;
+
+  @Param({"barrier", "dependencies"})
+  public String shape;
+
+  private final Provider provider =
+      blueprint -> {
+        throw new UnsupportedOperationException();
+      };
+
+  private List<Template> templates;
+  private ExecutorService executor;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Template.SetupFunction nothing = (env, node) -> {};
+
+    List<List<Template.SetupStage>> setups = new ArrayList<>(nodes);
+    for (int n = 0; n < nodes; n++) {
+      setups.add(new ArrayList<>(stages));
+    }
+    for (int s = 0; s < stages; s++) {
+      for (int n = 0; n < nodes; n++) {
+        Template.SetupStage stage;
+        if (shape.equals("barrier") || s == 0) {
+          stage = new Template.SetupStage(nothing, s);
+        } else {
+          Template.SetupStage previous = setups.get((n + 1) % nodes).get(s - 1);
+          stage = new Template.SetupStage(nothing, s, List.of(previous));
+        }
+        setups.get(n).add(stage);
+      }
+    }
+
+    templates = new ArrayList<>(nodes);
+    for (List<Template.SetupStage> setup : setups) {
+      templates.add(
+          new Template(Distribution.Debian10) {
+            @Override
+            public List<SetupStage> getSetup() {
+              return setup;
+            }
+          });
+    }
+
+    executor = Executors.newFixedThreadPool(Parallelism);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public SetupGraph create() throws Exception {
+    return SetupGraph.create(provider, templates);
+  }
+
+  @Benchmark
+  public void createAndRun() throws Exception {
+    SetupGraph.create(provider, templates).run(executor, Parallelism, (node, stage) -> {});
+  }
+}
@@ -0,0 +1,93 @@
+package uk.co.hillion.jake.virtualtests.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import uk.co.hillion.jake.virtualtests.providers.Environment;
+import uk.co.hillion.jake.virtualtests.providers.Node;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip latency and output throughput of {@link Node#ssh} on a Proxmox machine, against an
+ * embedded ssh server. Throughput is reported in commands; multiply by {@code bytes} for bytes
+ * per second.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SshBenchmark {
+  private MockCluster cluster;
+  private Environment env;
+  private Node node;
+
+  private final OutputStream discard =
+      new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+      };
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    cluster = new MockCluster(0);
+    env = cluster.getProvider().build(MockCluster.blueprint(1, 0));
+    node = env.getNodes().get(0);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    try {
+      env.close();
+    } finally {
+      cluster.close();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public int roundTrip() throws Exception {
+    try (Node.SSHResult result = node.ssh("true")) {
+      return result.getReturnCode();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Threads(8)
+  public int concurrentRoundTrip() throws Exception {
+    try (Node.SSHResult result = node.ssh("true")) {
+      return result.getReturnCode();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  public long bufferedOutput(Output output) throws Exception {
+    try (Node.SSHResult result = node.ssh("zero " + output.bytes)) {
+      return result.getStdoutSize();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  public int streamedOutput(Output output) throws Exception {
+    return node.ssh("zero " + output.bytes, discard, discard, 30000);
+  }
+
+  @State(Scope.Benchmark)
+  public static class Output {
+    @Param({"1048576", "67108864"})
+    public long bytes;
+  }
+}
@@ -0,0 +1,202 @@
+package uk.co.hillion.jake.virtualtests.junit;
+
+import org.junit.jupiter.api.extension.ExtensionContext;
+import uk.co.hillion.jake.virtualtests.providers.Environment;
+import uk.co.hillion.jake.virtualtests.providers.ImpossibleBlueprintException;
+import uk.co.hillion.jake.virtualtests.providers.Provider;
+import uk.co.hillion.jake.virtualtests.structure.Blueprint;
+import uk.co.hillion.jake.virtualtests.structure.StructuralKey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The environments built for a test run, keyed by provider and blueprint structure. Environments
+ * are built on first lease, counted while leased, and kept when idle so that later test classes
+ * can lease them again. Closing the registry, which JUnit does once the whole run has finished,
+ * closes every environment.
+ */
+class EnvironmentRegistry implements ExtensionContext.Store.CloseableResource {
+  private final Map<List<Object>, List<Entry>> entries = new HashMap<>();
+  private boolean closed = false;
+
+  /**
+   * Lease an environment for the blueprint, building one if none can be shared.
+   *
+   * <p>An exclusive lease is only given an environment nobody else holds, and if that environment
+   * has been leased before, it is reset first. Other leases share any environment that is not
+   * held exclusively, without resetting it.
+   */
+  Lease acquire(Provider provider, Blueprint blueprint, boolean exclusive)
+      throws IOException, ImpossibleBlueprintException {
+    List<Object> key = List.of(provider, StructuralKey.of(blueprint));
+
+    Entry entry = null;
+    boolean build;
+    boolean reset;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("environment registry is closed");
+      }
+
+      List<Entry> candidates = entries.computeIfAbsent(key, k -> new ArrayList<>());
+      for (Entry e : candidates) {
+        if (exclusive ? e.users == 0 : !e.exclusive) {
+          entry = e;
+          break;
+        }
+      }
+
+      build = entry == null;
+      if (build) {
+        entry = new Entry(key);
+        candidates.add(entry);
+      }
+
+      entry.users++;
+      entry.exclusive = exclusive;
+      reset = exclusive && entry.leases > 0;
+      entry.leases++;
+    }
+
+    try {
+      if (build) {
+        try {
+          entry.environment.complete(provider.build(blueprint));
+        } catch (IOException | ImpossibleBlueprintException | RuntimeException e) {
+          entry.environment.completeExceptionally(e);
+          throw e;
+        }
+      }
+
+      Environment environment = await(entry.environment);
+      if (reset) {
+        environment.reset();
+      }
+      return new Lease(entry, environment);
+    } catch (IOException | ImpossibleBlueprintException | RuntimeException e) {
+      discard(entry, exclusive);
+      throw e;
+    }
+  }
+
+  /**
+   * Forget an environment that failed to build or reset. An exclusive holder is the only user, so
+   * closes it; a shared one is left for its other users and is closed with the registry.
+   */
+  private void discard(Entry entry, boolean exclusive) {
+    synchronized (this) {
+      entry.users--;
+      List<Entry> candidates = entries.get(entry.key);
+      if (candidates != null) {
+        candidates.remove(entry);
+      }
+    }
+
+    if (exclusive && entry.environment.isDone() && !entry.environment.isCompletedExceptionally()) {
+      try {
+        entry.environment.join().close();
+      } catch (IOException | RuntimeException ignored) {
+        // The lease failure is what the caller needs to see.
+      }
+    }
+  }
+
+  private synchronized void release(Entry entry) {
+    entry.users--;
+    if (entry.users == 0) {
+      entry.exclusive = false;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    List<Entry> all = new ArrayList<>();
+    synchronized (this) {
+      closed = true;
+      entries.values().forEach(all::addAll);
+      entries.clear();
+    }
+
+    IOException failure = null;
+    for (Entry e : all) {
+      if (!e.environment.isDone() || e.environment.isCompletedExceptionally()) {
+        continue;
+      }
+      try {
+        e.environment.join().close();
+      } catch (IOException ex) {
+        failure = failure == null ? ex : failure;
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static Environment await(CompletableFuture<Environment> future)
+      throws IOException, ImpossibleBlueprintException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof ImpossibleBlueprintException) {
+        throw (ImpossibleBlueprintException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static class Entry {
+    private final List<Object> key;
+    private final CompletableFuture<Environment> environment = new CompletableFuture<>();
+
+    private int users = 0;
+    private int leases = 0;
+    private boolean exclusive = false;
+
+    private Entry(List<Object> key) {
+      this.key = key;
+    }
+  }
+
+  /** One test class's hold on an environment, given back by closing it. */
+  class Lease implements ExtensionContext.Store.CloseableResource {
+    private final Entry entry;
+    private final Environment environment;
+    private boolean closed = false;
+
+    private Lease(Entry entry, Environment environment) {
+      this.entry = entry;
+      this.environment = environment;
+    }
+
+    Environment getEnvironment() {
+      return environment;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      release(entry);
+    }
+  }
+}
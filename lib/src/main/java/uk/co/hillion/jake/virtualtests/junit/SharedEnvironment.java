@@ -0,0 +1,115 @@
+package uk.co.hillion.jake.virtualtests.junit;
+
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolutionException;
+import org.junit.jupiter.api.extension.ParameterResolver;
+import uk.co.hillion.jake.virtualtests.providers.Environment;
+import uk.co.hillion.jake.virtualtests.providers.Provider;
+import uk.co.hillion.jake.virtualtests.structure.Blueprint;
+import uk.co.hillion.jake.virtualtests.structure.StructuralKey;
+
+/**
+ * A JUnit 5 extension that leases a test class an Environment built from a blueprint, sharing it
+ * with every other test class in the run that asks the same provider for the same topology.
+ * Register it on a static field:
+ *
+ * <pre>{@code
+ * @RegisterExtension
+ * static final SharedEnvironment env = new SharedEnvironment(provider, blueprint);
+ * }</pre>
+ *
+ * <p>The environment is built when the first class leases it, and closed once the whole test run
+ * has finished, so classes that run one after another reuse it rather than each building their
+ * own. Blueprints are matched by structure, see {@link StructuralKey}, and providers by identity,
+ * so classes should share one provider instance.
+ *
+ * <p>By default classes running at the same time share an environment, and each sees whatever the
+ * classes before it left behind. With {@link #setResetBetweenLeases(boolean)} a class instead
+ * holds its environment alone and it is reset before being handed on, at the cost of building
+ * another environment whenever two such classes run concurrently.
+ *
+ * <p>Test and lifecycle methods may take the environment as a parameter, or call {@link
+ * #getEnvironment()}.
+ */
+public class SharedEnvironment implements BeforeAllCallback, AfterAllCallback, ParameterResolver {
+  private static final ExtensionContext.Namespace Namespace =
+      ExtensionContext.Namespace.create(SharedEnvironment.class);
+
+  private final Provider provider;
+  private final Blueprint blueprint;
+
+  private boolean resetBetweenLeases = false;
+  private volatile Environment environment;
+
+  public SharedEnvironment(Provider provider, Blueprint blueprint) {
+    this.provider = provider;
+    this.blueprint = blueprint;
+  }
+
+  /**
+   * Give each test class the environment to itself, reset to the state it was in once built if
+   * another class has used it before. The provider must support {@link Environment#reset()}.
+   */
+  public SharedEnvironment setResetBetweenLeases(boolean resetBetweenLeases) {
+    this.resetBetweenLeases = resetBetweenLeases;
+    return this;
+  }
+
+  /** The environment leased by the test class this extension is registered on. */
+  public Environment getEnvironment() {
+    if (environment == null) {
+      throw new IllegalStateException(
+          "no environment is leased, is the extension registered on a static field?");
+    }
+    return environment;
+  }
+
+  @Override
+  public void beforeAll(ExtensionContext context) throws Exception {
+    // Nested classes run inside their enclosing class's lease.
+    if (context.getStore(Namespace).get(this) != null) {
+      return;
+    }
+
+    EnvironmentRegistry registry =
+        context
+            .getRoot()
+            .getStore(Namespace)
+            .getOrComputeIfAbsent(
+                EnvironmentRegistry.class,
+                k -> new EnvironmentRegistry(),
+                EnvironmentRegistry.class);
+
+    EnvironmentRegistry.Lease lease = registry.acquire(provider, blueprint, resetBetweenLeases);
+    context.getStore(Namespace).put(this, lease);
+    environment = lease.getEnvironment();
+  }
+
+  @Override
+  public void afterAll(ExtensionContext context) {
+    EnvironmentRegistry.Lease lease =
+        context.getStore(Namespace).remove(this, EnvironmentRegistry.Lease.class);
+    if (lease != null) {
+      lease.close();
+    }
+  }
+
+  @Override
+  public boolean supportsParameter(ParameterContext parameter, ExtensionContext context) {
+    return parameter.getParameter().getType() == Environment.class;
+  }
+
+  @Override
+  public Object resolveParameter(ParameterContext parameter, ExtensionContext context) {
+    EnvironmentRegistry.Lease lease =
+        context.getStore(Namespace).get(this, EnvironmentRegistry.Lease.class);
+    if (lease == null) {
+      throw new ParameterResolutionException(
+          "no environment is leased, is the extension registered on a static field?");
+    }
+    return lease.getEnvironment();
+  }
+}
@@ -0,0 +1,119 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class AsyncUtils {
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private static final ThreadFactory threadFactory =
+      r -> {
+        Thread t = new Thread(r, "virtualtests-async-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      };
+
+  static final ExecutorService executor = Executors.newCachedThreadPool(threadFactory);
+
+  private AsyncUtils() {}
+
+  static ThreadFactory threadFactory(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Run a blocking task on the shared executor. Cancelling the returned future, or timing it out
+   * with {@link CompletableFuture#orTimeout}, interrupts the task.
+   */
+  static <T> CompletableFuture<T> supply(Callable<T> task) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Future<?> running =
+        executor.submit(
+            () -> {
+              try {
+                result.complete(task.call());
+              } catch (Throwable t) {
+                result.completeExceptionally(t);
+              }
+            });
+
+    result.whenComplete(
+        (r, t) -> {
+          if (t instanceof CancellationException || t instanceof TimeoutException) {
+            running.cancel(true);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Flatten a future of a future, propagating cancellation of the result to whichever of the two
+   * is still running.
+   */
+  static <T> CompletableFuture<T> flatten(CompletableFuture<CompletableFuture<T>> outer) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+
+    outer.whenComplete(
+        (inner, t) -> {
+          if (t != null) {
+            result.completeExceptionally(unwrap(t));
+            return;
+          }
+
+          inner.whenComplete(
+              (r, t2) -> {
+                if (t2 != null) {
+                  result.completeExceptionally(unwrap(t2));
+                } else {
+                  result.complete(r);
+                }
+              });
+          result.whenComplete((r, t2) -> inner.cancel(true));
+        });
+    result.whenComplete((r, t) -> outer.cancel(true));
+
+    return result;
+  }
+
+  /** Wait for a future, surfacing its failure as the IOException the synchronous API throws. */
+  static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = unwrap(e.getCause());
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static Throwable unwrap(Throwable t) {
+    while (t instanceof CompletionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+}
@@ -0,0 +1,48 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Paces the attempts of a retry loop against a deadline. The interval starts at the initial
+ * interval and doubles up to the maximum, and each sleep is drawn at random from the upper half of
+ * the interval, so that many callers waiting on the same thing drift apart rather than retrying in
+ * lockstep.
+ */
+class Backoff {
+  private final long maxIntervalMillis;
+  private final long deadline;
+  private long interval;
+
+  Backoff(long initialIntervalMillis, long maxIntervalMillis, long timeoutMillis) {
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.deadline = System.currentTimeMillis() + timeoutMillis;
+    this.interval = initialIntervalMillis;
+  }
+
+  long remainingMillis() {
+    return Math.max(deadline - System.currentTimeMillis(), 0);
+  }
+
+  /**
+   * Sleep before the next attempt, never past the deadline.
+   *
+   * @return false, without sleeping, if the deadline has passed and no attempts remain
+   */
+  boolean sleep() throws IOException {
+    long remaining = remainingMillis();
+    if (remaining == 0) {
+      return false;
+    }
+
+    long delay = interval / 2 + ThreadLocalRandom.current().nextLong(interval / 2 + 1);
+    interval = Math.min(interval * 2, maxIntervalMillis);
+    try {
+      Thread.sleep(Math.min(delay, remaining));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    return true;
+  }
+}
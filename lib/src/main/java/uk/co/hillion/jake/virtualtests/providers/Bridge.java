@@ -1,5 +1,7 @@
 package uk.co.hillion.jake.virtualtests.providers;
 
+import uk.co.hillion.jake.virtualtests.structure.LinkProperties;
+
 import java.io.IOException;
 
 public abstract class Bridge implements AutoCloseable {
@@ -7,4 +9,31 @@ public abstract class Bridge implements AutoCloseable {
   public abstract void close() throws IOException;
 
   public void closeAll() throws IOException {}
+
+  /**
+   * Hand the bridge to its provider to be torn down in the background, returning immediately. See
+   * {@link Node#release()}.
+   */
+  public void release() {
+    AsyncUtils.supply(
+        () -> {
+          close();
+          return null;
+        });
+  }
+
+  public LinkProperties getLinkProperties() {
+    return LinkProperties.None;
+  }
+
+  /**
+   * Change the conditions of the links through the bridge while it is in use, for example to
+   * degrade a network partway through a test. Traffic already queued is delivered as before.
+   *
+   * @throws UnsupportedOperationException if the provider cannot shape links
+   */
+  public void setLinkProperties(LinkProperties linkProperties) throws IOException {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " cannot shape its links");
+  }
 }
@@ -0,0 +1,72 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives a timed span for each phase of building and using an environment, such as an API call,
+ * a clone, a boot, an ssh connection or command, or a setup stage. Spans are tagged, for example
+ * with the VM id, template name and stage order. Listeners are called from many threads at once.
+ *
+ * <p>See {@link BuildMetrics} for counters and latency histograms, and {@link ChromeTrace} for a
+ * trace of a build.
+ */
+public interface BuildListener {
+  BuildListener None = (name, tags) -> Span.None;
+
+  /** Start a span. The span is closed, possibly from another thread, once the phase finishes. */
+  Span start(String name, Map<String, String> tags);
+
+  /** A listener passing every span to each of the given listeners. */
+  static BuildListener all(BuildListener... listeners) {
+    List<BuildListener> all = List.of(listeners);
+    return (name, tags) -> {
+      List<Span> spans = new ArrayList<>(all.size());
+      for (BuildListener l : all) {
+        spans.add(l.start(name, tags));
+      }
+
+      return new Span() {
+        @Override
+        public void tag(String key, String value) {
+          spans.forEach(s -> s.tag(key, value));
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+          spans.forEach(s -> s.fail(cause));
+        }
+
+        @Override
+        public void close() {
+          spans.forEach(Span::close);
+        }
+      };
+    };
+  }
+
+  interface Span extends AutoCloseable {
+    Span None =
+        new Span() {
+          @Override
+          public void tag(String key, String value) {}
+
+          @Override
+          public void fail(Throwable cause) {}
+
+          @Override
+          public void close() {}
+        };
+
+    /** Add a tag learned during the phase, such as a number of attempts. */
+    void tag(String key, String value);
+
+    /** Record that the phase failed. Called before the span is closed. */
+    void fail(Throwable cause);
+
+    /** End the span. Spans are closed exactly once. */
+    @Override
+    void close();
+  }
+}
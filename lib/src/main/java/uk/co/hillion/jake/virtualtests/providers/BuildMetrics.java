@@ -0,0 +1,132 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Aggregates spans by name into a count, a failure count and a latency histogram, so that, for
+ * example, {@code api.qemu.clone} gives the number and latency of clone calls and {@code
+ * ssh.connect} the number of ssh sessions made.
+ */
+public class BuildMetrics implements BuildListener {
+  private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  @Override
+  public Span start(String name, Map<String, String> tags) {
+    Histogram histogram = histograms.computeIfAbsent(name, k -> new Histogram());
+    long start = System.nanoTime();
+
+    return new Span() {
+      private boolean failed = false;
+
+      @Override
+      public void tag(String key, String value) {}
+
+      @Override
+      public void fail(Throwable cause) {
+        failed = true;
+      }
+
+      @Override
+      public void close() {
+        histogram.record(System.nanoTime() - start, failed);
+      }
+    };
+  }
+
+  /** The histogram of every span name seen so far, by name. */
+  public Map<String, Histogram> getHistograms() {
+    return new TreeMap<>(histograms);
+  }
+
+  /** A table of every span name, with its counts and latencies in milliseconds. */
+  @Override
+  public String toString() {
+    StringBuilder table = new StringBuilder();
+    table.append(
+        String.format(
+            "%-24s %8s %8s %10s %10s %10s %10s %10s%n",
+            "span", "count", "failed", "mean", "p50", "p90", "p99", "max"));
+
+    for (Map.Entry<String, Histogram> e : getHistograms().entrySet()) {
+      Histogram h = e.getValue();
+      synchronized (h) {
+        table.append(
+            String.format(
+                "%-24s %8d %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                e.getKey(),
+                h.getCount(),
+                h.getFailures(),
+                h.getMeanMillis(),
+                h.getPercentileMillis(50),
+                h.getPercentileMillis(90),
+                h.getPercentileMillis(99),
+                h.getMaxMillis()));
+      }
+    }
+
+    return table.toString();
+  }
+
+  /**
+   * A latency histogram with four buckets per doubling from one microsecond, so percentiles are
+   * within about 19% of the true value.
+   */
+  public static class Histogram {
+    private static final int BucketsPerDoubling = 4;
+
+    private final long[] buckets = new long[64 * BucketsPerDoubling];
+    private long count = 0;
+    private long failures = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    private synchronized void record(long nanos, boolean failed) {
+      long micros = Math.max(1, nanos / 1000);
+      int bucket = (int) Math.floor(Math.log(micros) / Math.log(2) * BucketsPerDoubling);
+      buckets[Math.min(bucket, buckets.length - 1)]++;
+
+      count++;
+      if (failed) {
+        failures++;
+      }
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+      return count;
+    }
+
+    public synchronized long getFailures() {
+      return failures;
+    }
+
+    public synchronized double getMeanMillis() {
+      return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    public synchronized double getMaxMillis() {
+      return maxNanos / 1e6;
+    }
+
+    /** The upper bound of the bucket holding the given percentile, capped at the maximum. */
+    public synchronized double getPercentileMillis(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+
+      long rank = (long) Math.ceil(percentile / 100 * count);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= Math.max(rank, 1)) {
+          double upperMicros = Math.pow(2, (i + 1) / (double) BucketsPerDoubling);
+          return Math.min(upperMicros / 1e3, getMaxMillis());
+        }
+      }
+      return getMaxMillis();
+    }
+  }
+}
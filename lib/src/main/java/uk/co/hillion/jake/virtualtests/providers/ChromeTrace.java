@@ -0,0 +1,219 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records spans as Chrome trace events, written as JSON once the build is done and opened in
+ * chrome://tracing or https://ui.perfetto.dev. Spans tagged with a VM id or namespace are drawn on
+ * a track per machine, and all other spans on a track per thread.
+ *
+ * <p>Viewers expect the spans of one track to nest, but a machine can run several commands at once
+ * over its pooled ssh sessions. A track is therefore split into as many rows as it needs, each
+ * holding spans that nest or follow one another.
+ */
+public class ChromeTrace implements BuildListener {
+  private final long origin = System.nanoTime();
+
+  private final List<Event> events = new ArrayList<>();
+  private final Set<String> tracks = new LinkedHashSet<>();
+
+  @Override
+  public Span start(String name, Map<String, String> tags) {
+    Event event = new Event(name, new LinkedHashMap<>(tags), track(tags), System.nanoTime());
+
+    return new Span() {
+      @Override
+      public void tag(String key, String value) {
+        synchronized (event) {
+          event.args.put(key, value);
+        }
+      }
+
+      @Override
+      public void fail(Throwable cause) {
+        synchronized (event) {
+          event.args.put("error", String.valueOf(cause));
+        }
+      }
+
+      @Override
+      public void close() {
+        long end = System.nanoTime();
+        synchronized (ChromeTrace.this) {
+          event.durationNanos = end - event.startNanos;
+          events.add(event);
+        }
+      }
+    };
+  }
+
+  private synchronized String track(Map<String, String> tags) {
+    String label;
+    if (tags.containsKey("vmid")) {
+      label = "vm " + tags.get("vmid");
+    } else if (tags.containsKey("namespace")) {
+      label = tags.get("namespace");
+    } else {
+      label = Thread.currentThread().getName();
+    }
+    tracks.add(label);
+    return label;
+  }
+
+  public void write(Path path) throws IOException {
+    try (OutputStream out = Files.newOutputStream(path)) {
+      write(out);
+    }
+  }
+
+  /** Write every span closed so far as a trace. The stream is flushed but not closed. */
+  public void write(OutputStream out) throws IOException {
+    Map<String, List<Event>> byTrack = new LinkedHashMap<>();
+    synchronized (this) {
+      for (String track : tracks) {
+        byTrack.put(track, new ArrayList<>());
+      }
+      for (Event e : events) {
+        byTrack.get(e.track).add(e);
+      }
+    }
+
+    List<String> rows = new ArrayList<>();
+    Map<Event, Integer> tids = new LinkedHashMap<>();
+    for (Map.Entry<String, List<Event>> t : byTrack.entrySet()) {
+      layOut(t.getKey(), t.getValue(), rows, tids);
+    }
+
+    Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    w.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+    boolean first = true;
+    for (int i = 0; i < rows.size(); i++) {
+      w.write(first ? "\n" : ",\n");
+      first = false;
+      w.write(
+          String.format(
+              "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":%s}}",
+              i + 1, quote(rows.get(i))));
+    }
+
+    for (Map.Entry<Event, Integer> t : tids.entrySet()) {
+      Event e = t.getKey();
+      w.write(first ? "\n" : ",\n");
+      first = false;
+
+      String category = e.name.contains(".") ? e.name.substring(0, e.name.indexOf('.')) : e.name;
+      w.write(
+          String.format(
+              "{\"name\":%s,\"cat\":%s,\"ph\":\"X\","
+                  + "\"pid\":1,\"tid\":%d,\"ts\":%d,\"dur\":%d,\"args\":{",
+              quote(e.name),
+              quote(category),
+              t.getValue(),
+              (e.startNanos - origin) / 1000,
+              (e.endNanos() - origin) / 1000 - (e.startNanos - origin) / 1000));
+
+      synchronized (e) {
+        boolean firstArg = true;
+        for (Map.Entry<String, String> a : e.args.entrySet()) {
+          if (!firstArg) {
+            w.write(",");
+          }
+          firstArg = false;
+          w.write(quote(a.getKey()) + ":" + quote(a.getValue()));
+        }
+      }
+      w.write("}}");
+    }
+
+    w.write("\n]}\n");
+    w.flush();
+  }
+
+  /**
+   * Place the spans of one track on rows, the first free row that a span either nests in or
+   * follows, adding rows to the list and recording each span's tid as it goes.
+   */
+  private static void layOut(
+      String track, List<Event> events, List<String> rows, Map<Event, Integer> tids) {
+    // Earliest first, and of spans starting together the longest, which the others nest in.
+    events.sort(
+        Comparator.comparingLong((Event e) -> e.startNanos)
+            .thenComparing(Comparator.comparingLong((Event e) -> e.durationNanos).reversed()));
+
+    int firstTid = rows.size() + 1;
+    List<Deque<Event>> open = new ArrayList<>();
+    for (Event e : events) {
+      int row = 0;
+      while (row < open.size() && !fits(open.get(row), e)) {
+        row++;
+      }
+      if (row == open.size()) {
+        open.add(new ArrayDeque<>());
+        rows.add(row == 0 ? track : String.format("%s (%d)", track, row + 1));
+      }
+      open.get(row).push(e);
+      tids.put(e, firstTid + row);
+    }
+  }
+
+  /**
+   * Whether a span can go on a row, given the spans on it that enclose the previous one, innermost
+   * first. Spans that ended before this one starts are dropped, as later spans start later still.
+   */
+  private static boolean fits(Deque<Event> enclosing, Event e) {
+    while (!enclosing.isEmpty() && enclosing.peek().endNanos() <= e.startNanos) {
+      enclosing.pop();
+    }
+    return enclosing.isEmpty() || enclosing.peek().endNanos() >= e.endNanos();
+  }
+
+  private static String quote(String s) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  private static class Event {
+    private final String name;
+    private final Map<String, String> args;
+    private final String track;
+    private final long startNanos;
+    private long durationNanos;
+
+    private Event(String name, Map<String, String> args, String track, long startNanos) {
+      this.name = name;
+      this.args = args;
+      this.track = track;
+      this.startNanos = startNanos;
+    }
+
+    private long endNanos() {
+      return startNanos + durationNanos;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Places machines on the nodes of a cluster, tracking the cores and memory this process has
+ * committed on each node against that node's capacity.
+ */
+class ClusterPlacement {
+  private final Map<String, Capacity> nodes = new LinkedHashMap<>();
+
+  void addNode(String node, int cores, long memoryMb) {
+    nodes.put(node, new Capacity(cores, memoryMb));
+  }
+
+  /**
+   * Place every request, or none of them. Requests are placed largest first, each on the eligible
+   * node with the most free memory when spreading, or the least free memory that still fits when
+   * packing.
+   *
+   * @return the node for each request, in the order given, or null if the requests do not fit
+   */
+  synchronized List<String> place(List<Request> requests, Proxmox.Placement policy) {
+    List<Integer> order = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      order.add(i);
+    }
+    order.sort(
+        Comparator.comparingLong((Integer i) -> requests.get(i).memoryMb)
+            .thenComparingInt(i -> requests.get(i).cores)
+            .reversed());
+
+    List<String> placed = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      placed.add(null);
+    }
+
+    for (int i : order) {
+      Request r = requests.get(i);
+
+      String best = null;
+      for (Map.Entry<String, Capacity> e : nodes.entrySet()) {
+        Capacity c = e.getValue();
+        if (!r.eligible.contains(e.getKey()) || !c.fits(r)) {
+          continue;
+        }
+
+        if (best == null) {
+          best = e.getKey();
+          continue;
+        }
+
+        long free = c.freeMemory();
+        long bestFree = nodes.get(best).freeMemory();
+        if (policy == Proxmox.Placement.SPREAD ? free > bestFree : free < bestFree) {
+          best = e.getKey();
+        }
+      }
+
+      if (best == null) {
+        // Roll back what this call committed so far.
+        for (int j = 0; j < requests.size(); j++) {
+          if (placed.get(j) != null) {
+            release(placed.get(j), requests.get(j).cores, requests.get(j).memoryMb);
+          }
+        }
+        return null;
+      }
+
+      nodes.get(best).commit(r.cores, r.memoryMb);
+      placed.set(i, best);
+    }
+
+    return placed;
+  }
+
+  synchronized void release(String node, int cores, long memoryMb) {
+    Capacity c = nodes.get(node);
+    if (c != null) {
+      c.commit(-cores, -memoryMb);
+    }
+  }
+
+  static class Request {
+    private final int cores;
+    private final long memoryMb;
+    private final Set<String> eligible;
+
+    Request(int cores, long memoryMb, Set<String> eligible) {
+      this.cores = cores;
+      this.memoryMb = memoryMb;
+      this.eligible = eligible;
+    }
+  }
+
+  private static class Capacity {
+    private final int cores;
+    private final long memoryMb;
+
+    private int usedCores = 0;
+    private long usedMemoryMb = 0;
+
+    private Capacity(int cores, long memoryMb) {
+      this.cores = cores;
+      this.memoryMb = memoryMb;
+    }
+
+    private boolean fits(Request r) {
+      return usedCores + r.cores <= cores && usedMemoryMb + r.memoryMb <= memoryMb;
+    }
+
+    private long freeMemory() {
+      return memoryMb - usedMemoryMb;
+    }
+
+    private void commit(int cores, long memoryMb) {
+      usedCores += cores;
+      usedMemoryMb += memoryMb;
+    }
+  }
+}
@@ -1,7 +1,14 @@
 package uk.co.hillion.jake.virtualtests.providers;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
 
 public class Environment implements AutoCloseable {
   private final List<Node> nodes;
@@ -20,20 +27,113 @@ public class Environment implements AutoCloseable {
     return List.copyOf(bridges);
   }
 
+  /** Reset every node in parallel. See {@link Node#reset()}. */
+  public void reset() throws IOException {
+    AsyncUtils.get(resetAsync());
+  }
+
+  public CompletableFuture<Void> resetAsync() {
+    return CompletableFuture.allOf(
+        nodes.stream().map(Node::resetAsync).toArray(CompletableFuture<?>[]::new));
+  }
+
+  /** Upload a local file to the same path on every node in parallel. */
+  public void broadcast(Path local, String remotePath) throws IOException {
+    broadcast(local, remotePath, nodes, false);
+  }
+
+  /**
+   * Upload a local file to the same path on each of the given nodes in parallel. If compress is
+   * set, the file is gzipped once locally, and each node receives the compressed copy and
+   * decompresses it in place, which helps large, compressible files on slow links.
+   */
+  public void broadcast(Path local, String remotePath, List<Node> nodes, boolean compress)
+      throws IOException {
+    if (!compress) {
+      AsyncUtils.get(broadcastAsync(local, remotePath, nodes));
+      return;
+    }
+
+    Path compressed = Files.createTempFile("virtualtests", ".gz");
+    try {
+      try (InputStream in = Files.newInputStream(local);
+          OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+        in.transferTo(out);
+      }
+
+      String staged = remotePath + ".virtualtests.gz";
+      String unpack =
+          String.format(
+              "gunzip -c -- %1$s > %2$s && rm -f -- %1$s",
+              Node.shellQuote(staged), Node.shellQuote(remotePath));
+      AsyncUtils.get(
+          CompletableFuture.allOf(
+              nodes.stream()
+                  .map(
+                      n ->
+                          AsyncUtils.supply(
+                              () -> {
+                                n.upload(compressed, staged);
+                                return n.mustSsh(unpack);
+                              }))
+                  .toArray(CompletableFuture<?>[]::new)));
+    } finally {
+      Files.deleteIfExists(compressed);
+    }
+  }
+
+  /** Upload a local file to the same path on each of the given nodes in parallel. */
+  public CompletableFuture<Void> broadcastAsync(Path local, String remotePath, List<Node> nodes) {
+    return CompletableFuture.allOf(
+        nodes.stream()
+            .map(
+                n ->
+                    AsyncUtils.supply(
+                        () -> {
+                          n.upload(local, remotePath);
+                          return null;
+                        }))
+            .toArray(CompletableFuture<?>[]::new));
+  }
+
+  /** Close every node in parallel, then every bridge, waiting for the teardown to finish. */
   @Override
   public void close() throws IOException {
-    for (Node n : getNodes()) {
-      n.close();
+    IOException failure = null;
+
+    List<CompletableFuture<Void>> closes = new ArrayList<>(nodes.size());
+    for (Node n : nodes) {
+      closes.add(n.closeAsync());
     }
-    if (getNodes().size() > 0) {
-      getNodes().get(0).closeAll();
+    for (CompletableFuture<Void> c : closes) {
+      try {
+        AsyncUtils.get(c);
+      } catch (IOException e) {
+        failure = failure == null ? e : failure;
+      }
+    }
+    if (nodes.size() > 0) {
+      nodes.get(0).closeAll();
     }
 
-    for (Bridge b : getBridges()) {
+    for (Bridge b : bridges) {
       b.close();
     }
-    if (getBridges().size() > 0) {
-      getBridges().get(0).closeAll();
+    if (bridges.size() > 0) {
+      bridges.get(0).closeAll();
+    }
+
+    if (failure != null) {
+      throw failure;
     }
   }
+
+  /**
+   * Hand every node and bridge to its provider to be torn down in the background, returning
+   * immediately. The environment must not be used afterwards.
+   */
+  public void release() {
+    nodes.forEach(Node::release);
+    bridges.forEach(Bridge::release);
+  }
 }
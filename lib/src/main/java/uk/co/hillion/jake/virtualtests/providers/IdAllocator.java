@@ -0,0 +1,54 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hands out free ids, such as VM ids or bridge numbers, from a cached inventory of the host, so
+ * that concurrent builds never pick the same id and the host is not listed once per resource.
+ *
+ * <p>Ids handed out stay reserved until they are released, even across inventory refreshes, as the
+ * resource that occupies them may not have reached the host yet.
+ */
+class IdAllocator {
+  private final Inventory inventory;
+  private final int initialId;
+
+  private final Set<Integer> reserved = new HashSet<>();
+  private Set<Integer> occupied;
+
+  IdAllocator(Inventory inventory, int initialId) {
+    this.inventory = inventory;
+    this.initialId = initialId;
+  }
+
+  /** Discard the cached inventory, so that the next reservation lists the host again. */
+  synchronized void invalidate() {
+    occupied = null;
+  }
+
+  synchronized int reserve() throws IOException {
+    if (occupied == null) {
+      occupied = inventory.list();
+    }
+
+    for (int newId = initialId; true; newId++) {
+      if (!occupied.contains(newId) && !reserved.contains(newId)) {
+        reserved.add(newId);
+        return newId;
+      }
+    }
+  }
+
+  synchronized void release(int id) {
+    reserved.remove(id);
+    if (occupied != null) {
+      occupied.remove(id);
+    }
+  }
+
+  interface Inventory {
+    Set<Integer> list() throws IOException;
+  }
+}
@@ -0,0 +1,225 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import com.google.common.hash.Hashing;
+import uk.co.hillion.jake.virtualtests.structure.Distribution;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * An index of cached setup layers: images of a node taken after its leading cacheable setup stages,
+ * keyed by the distribution and the cache keys of those stages. The index is kept in a properties
+ * file so that layers outlive the process; the images themselves belong to the provider.
+ *
+ * <p>Several processes may share a cache directory. Every change to the index re-reads it under a
+ * lock on the directory first, so that layers the others recorded are merged rather than lost.
+ */
+class LayerCache {
+  private static final String INDEX = "layers.properties";
+  private static final String LOCK = "layers.lock";
+  private static final String VM_NAME_PREFIX = "VirtualTestsLayer-";
+
+  private final Path directory;
+  private final int maxLayers;
+  private final long maxAgeMillis;
+
+  private final Map<String, Layer> layers = new HashMap<>();
+  private final Set<String> capturing = new HashSet<>();
+
+  LayerCache(Path directory, int maxLayers, long maxAgeMillis) throws IOException {
+    this.directory = directory;
+    this.maxLayers = maxLayers;
+    this.maxAgeMillis = maxAgeMillis;
+
+    Files.createDirectories(directory);
+    refresh();
+  }
+
+  /**
+   * The name a layer's VM is given, from its key. The index only records a VM id, which may have
+   * been reused by an unrelated VM since the layer was deleted, so a layer is only trusted while a
+   * VM of this name holds its id.
+   */
+  static String vmName(String key) {
+    return VM_NAME_PREFIX + key.substring(0, 32);
+  }
+
+  /**
+   * The key of each leading cacheable prefix of a node's stages, shortest first. Each key chains
+   * the one before it, so equal keys imply equal prefixes.
+   */
+  static List<String> prefixKeys(Distribution dist, List<Template.SetupStage> stages) {
+    List<String> keys = new ArrayList<>();
+
+    String key = dist.name();
+    for (Template.SetupStage stage : stages) {
+      if (stage.getCacheKey() == null) {
+        break;
+      }
+
+      key =
+          Hashing.sha256()
+              .hashString(key + "\0" + stage.getCacheKey(), StandardCharsets.UTF_8)
+              .toString();
+      keys.add(key);
+    }
+
+    return keys;
+  }
+
+  /** Re-read the index, to see the layers other processes have recorded or dropped since. */
+  synchronized void refresh() throws IOException {
+    update(() -> false);
+  }
+
+  /** The VM id of a live layer for the key, or null. */
+  synchronized Integer lookup(String key) {
+    Layer layer = layers.get(key);
+    if (layer == null || System.currentTimeMillis() - layer.created > maxAgeMillis) {
+      return null;
+    }
+    return layer.vmId;
+  }
+
+  /** Claim the capture of a layer, returning false if it exists or is already being captured. */
+  synchronized boolean beginCapture(String key) {
+    if (lookup(key) != null || capturing.contains(key)) {
+      return false;
+    }
+    capturing.add(key);
+    return true;
+  }
+
+  synchronized void abortCapture(String key) {
+    capturing.remove(key);
+  }
+
+  /**
+   * Record a captured layer, returning the VM ids of layers evicted to make room for it or for
+   * being past the maximum age. The caller is responsible for deleting those VMs.
+   */
+  synchronized List<Integer> commit(String key, int vmId) throws IOException {
+    capturing.remove(key);
+
+    List<Integer> evicted = new ArrayList<>();
+    update(
+        () -> {
+          layers.put(key, new Layer(vmId, System.currentTimeMillis()));
+
+          long now = System.currentTimeMillis();
+          Iterator<Layer> it = layers.values().iterator();
+          while (it.hasNext()) {
+            Layer layer = it.next();
+            if (now - layer.created > maxAgeMillis) {
+              evicted.add(layer.vmId);
+              it.remove();
+            }
+          }
+
+          while (layers.size() > maxLayers) {
+            Map.Entry<String, Layer> oldest =
+                layers.entrySet().stream()
+                    .min(Comparator.comparingLong(e -> e.getValue().created))
+                    .get();
+            evicted.add(oldest.getValue().vmId);
+            layers.remove(oldest.getKey());
+          }
+          return true;
+        });
+    return evicted;
+  }
+
+  /** Drop a layer whose image turned out to be unusable. */
+  synchronized void forget(String key) throws IOException {
+    update(() -> layers.remove(key) != null);
+  }
+
+  /**
+   * Re-read the index and apply a change to it, saving it if the change says it changed anything,
+   * all while holding the lock on the directory.
+   */
+  private void update(Change change) throws IOException {
+    // A file lock is held by the whole process, and overlapping locks within one process throw, so
+    // caches in the same process sharing a directory also wait on each other here.
+    synchronized (LayerCache.class) {
+      try (FileChannel channel =
+          FileChannel.open(
+              directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        FileLock lock = channel.lock();
+        try {
+          load();
+          if (change.apply()) {
+            save();
+          }
+        } finally {
+          lock.release();
+        }
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    layers.clear();
+
+    Path index = directory.resolve(INDEX);
+    if (!Files.exists(index)) {
+      return;
+    }
+
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(index)) {
+      properties.load(in);
+    }
+
+    for (String key : properties.stringPropertyNames()) {
+      String[] value = properties.getProperty(key).split(",");
+      layers.put(key, new Layer(Integer.parseInt(value[0]), Long.parseLong(value[1])));
+    }
+  }
+
+  private void save() throws IOException {
+    Properties properties = new Properties();
+    for (Map.Entry<String, Layer> e : layers.entrySet()) {
+      properties.setProperty(e.getKey(), e.getValue().vmId + "," + e.getValue().created);
+    }
+
+    Path temp = Files.createTempFile(directory, INDEX, ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      properties.store(out, "virtualtests setup layers: key=vmid,created");
+    }
+    Files.move(temp, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private interface Change {
+    /** Change the index in memory, returning whether anything changed. */
+    boolean apply() throws IOException;
+  }
+
+  private static class Layer {
+    private final int vmId;
+    private final long created;
+
+    private Layer(int vmId, long created) {
+      this.vmId = vmId;
+      this.created = created;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * An output stream that hands each complete UTF-8 line written to it, without its line ending, to a
+ * callback. A trailing line with no line ending is handed over on close.
+ */
+public class LineOutputStream extends OutputStream {
+  private final Consumer<String> onLine;
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+  public LineOutputStream(Consumer<String> onLine) {
+    this.onLine = onLine;
+  }
+
+  @Override
+  public synchronized void write(int b) {
+    if (b == '\n') {
+      emit();
+    } else {
+      line.write(b);
+    }
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) {
+    int start = off;
+    for (int i = off; i < off + len; i++) {
+      if (b[i] == '\n') {
+        line.write(b, start, i - start);
+        emit();
+        start = i + 1;
+      }
+    }
+    line.write(b, start, off + len - start);
+  }
+
+  private void emit() {
+    byte[] bytes = line.toByteArray();
+    int length = bytes.length;
+    if (length > 0 && bytes[length - 1] == '\r') {
+      length--;
+    }
+
+    line.reset();
+    onLine.accept(new String(bytes, 0, length, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public synchronized void close() {
+    if (line.size() > 0) {
+      emit();
+    }
+  }
+}
@@ -0,0 +1,835 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import uk.co.hillion.jake.virtualtests.structure.Blueprint;
+import uk.co.hillion.jake.virtualtests.structure.BridgeRequest;
+import uk.co.hillion.jake.virtualtests.structure.Distribution;
+import uk.co.hillion.jake.virtualtests.structure.LinkProperties;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds nodes as Linux namespaces on the local host rather than as virtual machines, so that a
+ * node starts in milliseconds and needs no hypervisor.
+ *
+ * <p>Each node is a process holding its own network, mount, UTS, IPC and PID namespaces, optionally
+ * chrooted into an overlay of a root filesystem registered for its distribution. Commands run in
+ * the node through nsenter. Each interface of a template is a veth pair with the node's end named
+ * {@code eth0}, {@code eth1} and so on, and each bridge request becomes a Linux bridge on the host
+ * that interfaces are attached to with {@link NamespaceBridge#attach}.
+ *
+ * <p>Creating namespaces requires root, or a command prefix such as {@code sudo -n} set with {@link
+ * LocalNamespacesConfig#setCommandPrefix}. Cores and memory of templates are not enforced. Nodes
+ * of distributions registered with {@link LocalNamespacesConfig#registerHostRoot} share the host's
+ * filesystem, so their setup is not isolated and they cannot be reset.
+ */
+public class LocalNamespaces implements Provider {
+  private static final File NullInput = new File("/dev/null");
+  private static final Path SysClassNet = Paths.get("/sys/class/net");
+
+  private final LocalNamespacesConfig config;
+
+  private final IdAllocator bridgeIds;
+  private final IdAllocator linkIds;
+  private final Tracer tracer;
+
+  public LocalNamespaces(LocalNamespacesConfig config) {
+    this.config = config;
+    this.tracer = new Tracer(config.buildListener);
+
+    bridgeIds = new IdAllocator(() -> listLinks("vtb"), 0);
+    linkIds = new IdAllocator(() -> listLinks("vtv"), 0);
+  }
+
+  @Override
+  public Environment build(Blueprint blueprint) throws ImpossibleBlueprintException, IOException {
+    BuildListener.Span span =
+        tracer.span(
+            "build",
+            "nodes",
+            blueprint.getNodes().size(),
+            "bridges",
+            blueprint.getBridges().size());
+    try {
+      return buildEnvironment(blueprint);
+    } catch (ImpossibleBlueprintException | IOException | RuntimeException e) {
+      span.fail(e);
+      throw e;
+    } finally {
+      span.close();
+    }
+  }
+
+  private Environment buildEnvironment(Blueprint blueprint)
+      throws ImpossibleBlueprintException, IOException {
+    // Check blueprint compatibility
+    for (Template t : blueprint.getNodes()) {
+      checkTemplate(t);
+    }
+
+    SetupGraph setup = SetupGraph.create(this, blueprint.getNodes());
+
+    bridgeIds.invalidate();
+    linkIds.invalidate();
+
+    // Build environment for blueprint
+    List<Node> nodes = new ArrayList<>(blueprint.getNodes().size());
+    try {
+      for (Template t : blueprint.getNodes()) {
+        nodes.add(new NamespaceNode(t));
+      }
+      AsyncUtils.get(
+          CompletableFuture.allOf(
+              nodes.stream().map(Node::startAsync).toArray(CompletableFuture<?>[]::new)));
+    } catch (IOException | RuntimeException e) {
+      new Environment(nodes, List.of()).close();
+      throw e;
+    }
+
+    List<Bridge> bridges;
+    try {
+      bridges = buildBridges(blueprint.getBridges());
+    } catch (IOException | RuntimeException e) {
+      new Environment(nodes, List.of()).close();
+      throw e;
+    }
+
+    Environment env = new Environment(Collections.unmodifiableList(nodes), bridges);
+
+    // Setup environment according to blueprint
+    try {
+      ExecutorService executor = Executors.newFixedThreadPool(config.setupConcurrency);
+      try {
+        setup.run(
+            executor,
+            config.setupConcurrency,
+            (node, stage) -> {
+              NamespaceNode n = (NamespaceNode) nodes.get(node);
+              tracer.call(
+                  "stage",
+                  () -> {
+                    stage.getFoo().setup(env, n);
+                    return null;
+                  },
+                  "namespace",
+                  n.name,
+                  "template",
+                  n.getTemplate().getName(),
+                  "order",
+                  stage.getOrder(),
+                  "index",
+                  node);
+            });
+      } finally {
+        executor.shutdownNow();
+      }
+
+      if (config.resettable) {
+        for (Node n : nodes) {
+          ((NamespaceNode) n).captureResetImage();
+        }
+      }
+    } catch (Exception e) {
+      env.close();
+      throw e;
+    }
+
+    return env;
+  }
+
+  private void checkTemplate(Template template) throws ImpossibleBlueprintException {
+    if (!config.rootfsMap.containsKey(template.dist)
+        && !config.hostRootDistributions.contains(template.dist)) {
+      throw new ImpossibleBlueprintException(
+          this,
+          String.format(
+              "LocalNamespaces missing root filesystem for distribution `%s`", template.dist));
+    }
+  }
+
+  private List<Bridge> buildBridges(List<BridgeRequest> requests) throws IOException {
+    if (requests.isEmpty()) {
+      return List.of();
+    }
+
+    List<NamespaceBridge> bridges = new ArrayList<>(requests.size());
+    StringBuilder script = new StringBuilder("set -e\n");
+    try {
+      for (int i = 0; i < requests.size(); i++) {
+        NamespaceBridge b =
+            new NamespaceBridge(bridgeIds.reserve(), requests.get(i).getLinkProperties());
+        bridges.add(b);
+        script.append(String.format("ip link add %1$s type bridge\nip link set %1$s up\n", b.name));
+      }
+      host(script.toString());
+    } catch (IOException | RuntimeException e) {
+      for (NamespaceBridge b : bridges) {
+        try {
+          b.close();
+        } catch (IOException ignored) {
+        }
+      }
+      throw e;
+    }
+
+    return List.copyOf(bridges);
+  }
+
+  /** Run a shell script on the host, with the command prefix, throwing if it fails. */
+  private void host(String script) throws IOException {
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    int code = exec(prefixed("sh", "-c", script), new ByteArrayOutputStream(), stderr);
+    if (code != 0) {
+      throw new IOException(
+          String.format(
+              "host command failed with status %d: %s",
+              code, new String(stderr.toByteArray(), StandardCharsets.UTF_8).trim()));
+    }
+  }
+
+  private List<String> prefixed(String... command) {
+    List<String> full = new ArrayList<>(config.commandPrefix);
+    full.addAll(List.of(command));
+    return full;
+  }
+
+  /**
+   * Run a process to completion, copying its output to the given streams, which are flushed but not
+   * closed.
+   */
+  private static int exec(List<String> command, OutputStream stdout, OutputStream stderr)
+      throws IOException {
+    return exec(command, null, stdout, stderr);
+  }
+
+  /**
+   * Run a process to completion as above, feeding it the given stream on stdin, or nothing if it is
+   * null. The stream is read to its end but not closed.
+   */
+  private static int exec(
+      List<String> command, InputStream stdin, OutputStream stdout, OutputStream stderr)
+      throws IOException {
+    ProcessBuilder builder = new ProcessBuilder(command);
+    if (stdin == null) {
+      builder.redirectInput(NullInput);
+    }
+    Process process = builder.start();
+    try {
+      CompletableFuture<Void> input =
+          stdin == null
+              ? CompletableFuture.completedFuture(null)
+              : AsyncUtils.supply(
+                  () -> {
+                    try (OutputStream out = process.getOutputStream()) {
+                      stdin.transferTo(out);
+                    }
+                    return null;
+                  });
+      CompletableFuture<Void> errors =
+          AsyncUtils.supply(
+              () -> {
+                try (InputStream in = process.getErrorStream()) {
+                  in.transferTo(stderr);
+                }
+                return null;
+              });
+      try (InputStream in = process.getInputStream()) {
+        in.transferTo(stdout);
+      }
+      AsyncUtils.get(errors);
+      AsyncUtils.get(input);
+
+      int code = process.waitFor();
+      stdout.flush();
+      stderr.flush();
+      return code;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      if (process.isAlive()) {
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  private static Set<Integer> listLinks(String prefix) throws IOException {
+    try (Stream<Path> links = Files.list(SysClassNet)) {
+      return links
+          .map(p -> p.getFileName().toString())
+          .filter(x -> x.matches(prefix + "\\d+"))
+          .map(x -> Integer.parseInt(x.substring(prefix.length())))
+          .collect(Collectors.toSet());
+    }
+  }
+
+  /**
+   * Shape the egress of a host link, which is the traffic its bridge delivers to the node, with a
+   * netem queue. The queue's limit is raised from netem's default of 1000 packets so that a delay
+   * alone does not drop packets at high rates.
+   */
+  private static String shapeScript(String link, LinkProperties properties) {
+    if (properties.isNone()) {
+      return String.format("tc qdisc del dev %s root 2>/dev/null || true\n", link);
+    }
+
+    StringBuilder netem = new StringBuilder("netem limit 100000");
+    if (properties.getDelayMillis() > 0 || properties.getJitterMillis() > 0) {
+      netem.append(
+          String.format(
+              " delay %sms %sms",
+              decimal(properties.getDelayMillis()), decimal(properties.getJitterMillis())));
+    }
+    if (properties.getLossPercent() > 0) {
+      netem.append(String.format(" loss %s%%", decimal(properties.getLossPercent())));
+    }
+    if (properties.getReorderPercent() > 0) {
+      netem.append(String.format(" reorder %s%%", decimal(properties.getReorderPercent())));
+    }
+    if (properties.getRateKbit() > 0) {
+      netem.append(String.format(" rate %dkbit", properties.getRateKbit()));
+    }
+    return String.format("tc qdisc replace dev %s root %s\n", link, netem);
+  }
+
+  private static String decimal(double value) {
+    return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+  }
+
+  private static String quote(String s) {
+    return "'" + s.replace("'", "'\\''") + "'";
+  }
+
+  public static class LocalNamespacesConfig {
+    private final Map<Distribution, Path> rootfsMap = new EnumMap<>(Distribution.class);
+    private final Set<Distribution> hostRootDistributions = EnumSet.noneOf(Distribution.class);
+
+    private List<String> commandPrefix = List.of();
+    private Path workDirectory =
+        Paths.get(System.getProperty("java.io.tmpdir"), "virtualtests-namespaces");
+
+    private String uplinkBridge;
+
+    private int setupConcurrency = 16;
+    private long spillThreshold = 16 * 1024 * 1024;
+
+    private boolean resettable = false;
+
+    private BuildListener buildListener = BuildListener.None;
+
+    /**
+     * Register an unpacked root filesystem for a distribution. Each node of the distribution runs
+     * in a private overlay of the directory, which is never modified. The root filesystem must
+     * contain {@code /bin/sh}.
+     */
+    public LocalNamespacesConfig registerRootfs(Distribution dist, Path rootfs) {
+      rootfsMap.put(dist, rootfs);
+      return this;
+    }
+
+    /** Declare that the host itself can stand in for a distribution, without a root filesystem. */
+    public LocalNamespacesConfig registerHostRoot(Distribution dist) {
+      hostRootDistributions.add(dist);
+      return this;
+    }
+
+    /** Set a prefix for every privileged command, such as {@code sudo -n}. */
+    public LocalNamespacesConfig setCommandPrefix(String... commandPrefix) {
+      this.commandPrefix = List.of(commandPrefix);
+      return this;
+    }
+
+    /** Set the directory holding each node's overlay and reset image. */
+    public LocalNamespacesConfig setWorkDirectory(Path workDirectory) {
+      this.workDirectory = workDirectory;
+      return this;
+    }
+
+    /**
+     * Attach the first interface of every node to an existing host bridge, for example one the host
+     * routes to the internet.
+     */
+    public LocalNamespacesConfig setUplinkBridge(String uplinkBridge) {
+      this.uplinkBridge = uplinkBridge;
+      return this;
+    }
+
+    /** Set the maximum number of setup stages running at once across all nodes. */
+    public LocalNamespacesConfig setSetupConcurrency(int setupConcurrency) {
+      if (setupConcurrency < 1) {
+        throw new IllegalArgumentException("setup concurrency must be at least 1");
+      }
+      this.setupConcurrency = setupConcurrency;
+      return this;
+    }
+
+    /** Set the size past which buffered command output is moved from memory to a temporary file. */
+    public LocalNamespacesConfig setSpillThreshold(long spillThreshold) {
+      this.spillThreshold = spillThreshold;
+      return this;
+    }
+
+    /**
+     * Report timed spans for node starts and stops, commands and setup stages. Combine listeners
+     * with {@link BuildListener#all}.
+     */
+    public LocalNamespacesConfig setBuildListener(BuildListener buildListener) {
+      this.buildListener = buildListener;
+      return this;
+    }
+
+    /**
+     * Copy the overlay of every node once setup has finished, so that {@link Environment#reset()}
+     * can restore it. Nodes sharing the host's filesystem are skipped.
+     */
+    public LocalNamespacesConfig setResettable(boolean resettable) {
+      this.resettable = resettable;
+      return this;
+    }
+  }
+
+  public class NamespaceNode extends Node {
+    private final String name;
+    private final Path directory;
+    private final Path rootfs;
+    private final List<Integer> links;
+
+    // Bridge attached to each interface, kept so that a restarted node is attached again.
+    private final Map<Integer, NamespaceBridge> attachments = new HashMap<>();
+
+    private Process holder;
+    private volatile long pid = -1;
+
+    private boolean resetCaptured = false;
+
+    private NamespaceNode(Template template) throws IOException {
+      super(template);
+      this.name = "vt-" + UUID.randomUUID().toString().substring(0, 8);
+      this.directory = config.workDirectory.resolve(name);
+      this.rootfs = config.rootfsMap.get(template.dist);
+
+      links = new ArrayList<>(template.getInterfaces());
+      try {
+        for (int i = 0; i < template.getInterfaces(); i++) {
+          links.add(linkIds.reserve());
+        }
+
+        if (rootfs != null) {
+          host(
+              String.format(
+                  "mkdir -p %1$s/upper %1$s/work %1$s/merged", quote(directory.toString())));
+        }
+      } catch (IOException | RuntimeException e) {
+        links.forEach(linkIds::release);
+        throw e;
+      }
+    }
+
+    /** The name of the host's end of an interface, for capturing or shaping its traffic. */
+    public String getHostLink(int iface) {
+      return "vtv" + links.get(iface);
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+      if (pid != -1) {
+        return;
+      }
+
+      tracer.call(
+          "boot",
+          () -> {
+            startHolder();
+            return null;
+          },
+          "namespace",
+          name);
+    }
+
+    private void startHolder() throws IOException {
+      holder =
+          new ProcessBuilder(
+                  prefixed(
+                      "unshare",
+                      "--net",
+                      "--mount",
+                      "--uts",
+                      "--ipc",
+                      "--pid",
+                      "--fork",
+                      "--mount-proc",
+                      "sh",
+                      "-c",
+                      holderScript()))
+              .redirectInput(NullInput)
+              .start();
+
+      try {
+        // The holder prints once it is in place, then becomes the namespaces' init and sleeps.
+        BufferedReader out =
+            new BufferedReader(
+                new InputStreamReader(holder.getInputStream(), StandardCharsets.UTF_8));
+        if (!"ready".equals(out.readLine())) {
+          byte[] stderr = holder.getErrorStream().readAllBytes();
+          throw new IOException(
+              "namespace holder failed: " + new String(stderr, StandardCharsets.UTF_8).trim());
+        }
+
+        // The holder is the only leaf of the process tree, below any prefix and unshare.
+        pid =
+            holder
+                .descendants()
+                .filter(h -> !h.children().findAny().isPresent())
+                .findFirst()
+                .orElseThrow(() -> new IOException("namespace holder exited"))
+                .pid();
+
+        host(linkScript());
+      } catch (IOException | RuntimeException e) {
+        kill();
+        throw e;
+      }
+    }
+
+    private String holderScript() {
+      if (rootfs == null) {
+        return String.format("hostname %s && echo ready && exec sleep infinity", name);
+      }
+
+      String merged = quote(directory.resolve("merged").toString());
+      String options =
+          quote(
+              String.format(
+                  "lowerdir=%s,upperdir=%s,workdir=%s",
+                  rootfs, directory.resolve("upper"), directory.resolve("work")));
+      return String.format(
+          "set -e\n"
+              + "hostname %s\n"
+              + "mount -t overlay overlay -o %s %s\n"
+              + "mount -t proc proc %3$s/proc\n"
+              + "mount -t sysfs sysfs %3$s/sys\n"
+              + "mount --rbind /dev %3$s/dev\n"
+              + "exec chroot %3$s /bin/sh -c 'echo ready && exec sleep infinity'\n",
+          name,
+          options,
+          merged);
+    }
+
+    /** Create each interface's veth pair, with the node's end made directly in its namespace. */
+    private String linkScript() {
+      StringBuilder script = new StringBuilder("set -e\n");
+      StringBuilder inside = new StringBuilder("ip link set lo up");
+
+      for (int i = 0; i < links.size(); i++) {
+        String link = getHostLink(i);
+        script.append(
+            String.format(
+                "ip link add %s type veth peer name eth%d netns %d\nip link set %1$s up\n",
+                link, i, pid));
+
+        NamespaceBridge bridge = attachments.get(i);
+        String master = bridge != null ? bridge.name : i == 0 ? config.uplinkBridge : null;
+        if (master != null) {
+          script.append(String.format("ip link set %s master %s\n", link, master));
+        }
+        if (bridge != null && !bridge.linkProperties.isNone()) {
+          script.append(shapeScript(link, bridge.linkProperties));
+        }
+
+        inside.append(String.format(" && ip link set eth%d up", i));
+      }
+
+      script.append(String.format("nsenter -t %d -n sh -c %s\n", pid, quote(inside.toString())));
+      return script.toString();
+    }
+
+    @Override
+    public synchronized void stop() throws IOException {
+      if (pid == -1) {
+        return;
+      }
+      tracer.call(
+          "shutdown",
+          () -> {
+            kill();
+            return null;
+          },
+          "namespace",
+          name);
+    }
+
+    /** Kill the holder, which as init of the PID namespace takes every process of the node. */
+    private void kill() throws IOException {
+      try {
+        if (pid != -1) {
+          host("kill -9 " + pid);
+        }
+        holder.destroyForcibly();
+        holder.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } finally {
+        pid = -1;
+      }
+
+      // The network namespace, and with it the host ends of the veths, is freed asynchronously.
+      long deadline = System.currentTimeMillis() + 5000;
+      for (int i = 0; i < links.size(); i++) {
+        while (Files.exists(SysClassNet.resolve(getHostLink(i)))) {
+          if (System.currentTimeMillis() > deadline) {
+            throw new IOException("interfaces of stopped node were not removed");
+          }
+          try {
+            Thread.sleep(10);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      stop();
+      links.forEach(linkIds::release);
+      if (rootfs != null) {
+        host("rm -rf " + quote(directory.toString()));
+      }
+    }
+
+    private void captureResetImage() throws IOException {
+      if (rootfs == null) {
+        return;
+      }
+
+      mustSsh("sync");
+      host(
+          String.format(
+              "rm -rf %1$s/reset && cp -a %1$s/upper %1$s/reset", quote(directory.toString())));
+      resetCaptured = true;
+    }
+
+    /** Restart the node from a copy of the overlay taken once setup finished. */
+    @Override
+    public synchronized void reset() throws IOException {
+      if (!resetCaptured) {
+        throw new IllegalStateException(
+            "node has no reset image, see LocalNamespacesConfig.setResettable");
+      }
+
+      stop();
+      host(
+          String.format(
+              "rm -rf %1$s/upper %1$s/work && cp -a %1$s/reset %1$s/upper && mkdir %1$s/work",
+              quote(directory.toString())));
+      start();
+    }
+
+    /**
+     * Run a command inside the node. There is no connection to make, so the timeout is unused.
+     * Commands see the node's root filesystem and namespaces, but run with the host's credentials.
+     */
+    @Override
+    public SSHResult ssh(String command, long connectionTimeoutMillis) throws IOException {
+      return ssh(command, null, connectionTimeoutMillis);
+    }
+
+    @Override
+    public SSHResult ssh(String command, InputStream stdin, long connectionTimeoutMillis)
+        throws IOException {
+      SpillOutputStream stdout = new SpillOutputStream(config.spillThreshold);
+      SpillOutputStream stderr = new SpillOutputStream(config.spillThreshold);
+      try {
+        int code =
+            tracer.call(
+                "ssh.exec",
+                () -> exec(enter(command), stdin, stdout, stderr),
+                "namespace",
+                name);
+        stdout.close();
+        stderr.close();
+        return new SSHResult(code, stdout, stderr);
+      } catch (IOException | RuntimeException e) {
+        stdout.delete();
+        stderr.delete();
+        throw e;
+      }
+    }
+
+    @Override
+    public CompletableFuture<Integer> sshAsync(
+        String command, OutputStream stdout, OutputStream stderr, long connectionTimeoutMillis) {
+      return AsyncUtils.supply(
+          () ->
+              tracer.call(
+                  "ssh.exec", () -> exec(enter(command), stdout, stderr), "namespace", name));
+    }
+
+    /** Upload by piping the stream into a {@code cat} inside the node. */
+    @Override
+    public void upload(InputStream in, String remotePath) throws IOException {
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      int code =
+          tracer.call(
+              "upload",
+              () ->
+                  exec(
+                      enter("cat > " + quote(remotePath)),
+                      in,
+                      new ByteArrayOutputStream(),
+                      stderr),
+              "namespace",
+              name,
+              "path",
+              remotePath);
+      if (code != 0) {
+        throw new IOException(
+            String.format(
+                "upload to %s failed with code %d: %s",
+                remotePath, code, stderr.toString(StandardCharsets.UTF_8)));
+      }
+    }
+
+    private List<String> enter(String command) throws IOException {
+      long target = pid;
+      if (target == -1) {
+        throw new IOException("node is not running");
+      }
+      return prefixed(
+          "nsenter",
+          "-t",
+          Long.toString(target),
+          "-n",
+          "-m",
+          "-u",
+          "-i",
+          "-p",
+          "-r",
+          "-w",
+          "sh",
+          "-c",
+          command);
+    }
+  }
+
+  /**
+   * A Linux bridge on the host. Links are shaped with a netem queue on the host's end of each
+   * attached interface, which requires {@code tc} on the host.
+   */
+  public class NamespaceBridge extends Bridge {
+    private final int id;
+    private final String name;
+
+    // Nodes with an interface attached, to shape again when the link properties change.
+    private final Set<NamespaceNode> nodes = new HashSet<>();
+
+    private volatile LinkProperties linkProperties;
+
+    private NamespaceBridge(int id, LinkProperties linkProperties) {
+      this.id = id;
+      this.name = "vtb" + id;
+      this.linkProperties = linkProperties;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Attach an interface of a node to this bridge, replacing any bridge it was attached to. The
+     * attachment, and the shaping of its link, is kept across restarts of the node.
+     */
+    public synchronized void attach(NamespaceNode node, int iface) throws IOException {
+      synchronized (node) {
+        if (iface < 0 || iface >= node.links.size()) {
+          throw new IllegalArgumentException(String.format("node has no interface %d", iface));
+        }
+
+        NamespaceBridge previous = node.attachments.put(iface, this);
+        nodes.add(node);
+        if (node.pid != -1) {
+          String link = node.getHostLink(iface);
+          String script = String.format("set -e\nip link set %s master %s\n", link, name);
+          if (!linkProperties.isNone()
+              || (previous != null && !previous.linkProperties.isNone())) {
+            script += shapeScript(link, linkProperties);
+          }
+          host(script);
+        }
+      }
+    }
+
+    @Override
+    public LinkProperties getLinkProperties() {
+      return linkProperties;
+    }
+
+    /** Shape every attached interface of the running nodes at once, and those attached later. */
+    @Override
+    public synchronized void setLinkProperties(LinkProperties linkProperties) throws IOException {
+      this.linkProperties = linkProperties;
+
+      StringBuilder script = new StringBuilder();
+      for (NamespaceNode node : nodes) {
+        synchronized (node) {
+          if (node.pid == -1) {
+            continue;
+          }
+          for (Map.Entry<Integer, NamespaceBridge> e : node.attachments.entrySet()) {
+            if (e.getValue() == this) {
+              script.append(shapeScript(node.getHostLink(e.getKey()), linkProperties));
+            }
+          }
+        }
+      }
+
+      if (script.length() > 0) {
+        tracer.call(
+            "shape",
+            () -> {
+              host("set -e\n" + script);
+              return null;
+            },
+            "bridge",
+            name);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        host(String.format("! [ -e /sys/class/net/%1$s ] || ip link del %1$s", name));
+      } finally {
+        bridgeIds.release(id);
+      }
+    }
+  }
+}
@@ -2,10 +2,26 @@ package uk.co.hillion.jake.virtualtests.providers;
 
 import uk.co.hillion.jake.virtualtests.structure.Template;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Node implements AutoCloseable {
-  private final Template template;
+  private volatile Template template;
 
   protected Node(Template template) {
     this.template = template;
@@ -16,16 +32,142 @@ public abstract class Node implements AutoCloseable {
 
   public void closeAll() throws IOException {}
 
+  public CompletableFuture<Void> closeAsync() {
+    return AsyncUtils.supply(
+        () -> {
+          close();
+          return null;
+        });
+  }
+
+  /**
+   * Hand the node to its provider to be torn down in the background, returning immediately. The
+   * node must not be used afterwards. Failures are retried or abandoned, never reported.
+   */
+  public void release() {
+    closeAsync();
+  }
+
   public abstract void start() throws IOException;
 
   public abstract void stop() throws IOException;
 
+  /**
+   * Wait until the node has finished booting and can run commands, for nodes whose start returns
+   * before then. By default this retries a trivial command until it succeeds or the timeout passes.
+   */
+  public void awaitReady(long timeoutMillis) throws IOException {
+    mustSsh("true", timeoutMillis);
+  }
+
+  /**
+   * Return the node to the state it was in once its environment finished setup, leaving it running
+   * and reachable. Only state on disk is restored: the node boots again, so anything setup left
+   * running or held in memory must come back through its own boot. Providers that cannot do so
+   * throw UnsupportedOperationException, and a node of a provider that was not configured to
+   * capture it throws IllegalStateException.
+   */
+  public void reset() throws IOException {
+    throw new UnsupportedOperationException(
+        String.format("%s does not support reset", getClass().getSimpleName()));
+  }
+
   public abstract SSHResult ssh(String command, long connectionTimeoutMillis) throws IOException;
 
   public SSHResult ssh(String command) throws IOException {
     return ssh(command, 30000);
   }
 
+  /**
+   * Run a command as {@link #ssh(String, long)}, feeding it a stream on stdin, which is read to its
+   * end but not closed. Providers that cannot feed stdin throw UnsupportedOperationException.
+   */
+  public SSHResult ssh(String command, InputStream stdin, long connectionTimeoutMillis)
+      throws IOException {
+    throw new UnsupportedOperationException(
+        String.format("%s does not support stdin", getClass().getSimpleName()));
+  }
+
+  /**
+   * Run a command, writing its output to the given streams as it arrives rather than buffering it.
+   * The streams are flushed but not closed. Wrap a line callback in a {@link LineOutputStream}, or
+   * a caller's channel with {@link java.nio.channels.Channels#newOutputStream}.
+   *
+   * @return the command's exit status
+   */
+  public int ssh(
+      String command, OutputStream stdout, OutputStream stderr, long connectionTimeoutMillis)
+      throws IOException {
+    return AsyncUtils.get(sshAsync(command, stdout, stderr, connectionTimeoutMillis));
+  }
+
+  /*
+   * Asynchronous forms of the above. Cancelling a returned future, or timing it out with
+   * CompletableFuture.orTimeout, abandons the operation.
+   */
+
+  public CompletableFuture<Void> startAsync() {
+    return AsyncUtils.supply(
+        () -> {
+          start();
+          return null;
+        });
+  }
+
+  public CompletableFuture<Void> awaitReadyAsync(long timeoutMillis) {
+    return AsyncUtils.supply(
+        () -> {
+          awaitReady(timeoutMillis);
+          return null;
+        });
+  }
+
+  public CompletableFuture<Void> resetAsync() {
+    return AsyncUtils.supply(
+        () -> {
+          reset();
+          return null;
+        });
+  }
+
+  public CompletableFuture<Void> stopAsync() {
+    return AsyncUtils.supply(
+        () -> {
+          stop();
+          return null;
+        });
+  }
+
+  public CompletableFuture<SSHResult> sshAsync(String command, long connectionTimeoutMillis) {
+    return AsyncUtils.supply(() -> ssh(command, connectionTimeoutMillis));
+  }
+
+  public CompletableFuture<SSHResult> sshAsync(String command) {
+    return sshAsync(command, 30000);
+  }
+
+  /**
+   * Streaming form of {@link #sshAsync(String, long)}. Nodes that cannot stream should leave this
+   * default, which buffers the whole output before copying it to the streams.
+   */
+  public CompletableFuture<Integer> sshAsync(
+      String command, OutputStream stdout, OutputStream stderr, long connectionTimeoutMillis) {
+    return AsyncUtils.supply(
+        () -> {
+          try (SSHResult result = ssh(command, connectionTimeoutMillis)) {
+            try (InputStream in = result.getStdoutStream()) {
+              in.transferTo(stdout);
+            }
+            try (InputStream in = result.getStderrStream()) {
+              in.transferTo(stderr);
+            }
+            stdout.flush();
+            stderr.flush();
+            return result.getReturnCode();
+          }
+        });
+  }
+
   public SSHResult mustSsh(String command) throws IOException {
     return mustSsh(command, 30000);
   }
@@ -42,27 +184,287 @@ public abstract class Node implements AutoCloseable {
     return template;
   }
 
-  public static class SSHResult {
+  /** Record that a provider has updated the node in place to a new template. */
+  void setTemplate(Template template) {
+    this.template = template;
+  }
+
+  /**
+   * Copy a stream to a file on the node, replacing the file. The stream is read to its end but not
+   * closed. Providers that cannot write files throw UnsupportedOperationException.
+   */
+  public void upload(InputStream in, String remotePath) throws IOException {
+    throw new UnsupportedOperationException(
+        String.format("%s does not support upload", getClass().getSimpleName()));
+  }
+
+  /** Copy a local file to the node, streaming it from disk rather than reading it into memory. */
+  public void upload(Path localPath, String remotePath) throws IOException {
+    try (FileChannel channel = FileChannel.open(localPath, StandardOpenOption.READ)) {
+      upload(Channels.newInputStream(channel), remotePath);
+    }
+  }
+
+  /**
+   * Copy a file on the node to a stream, which is flushed but not closed. By default this streams
+   * the file over a command; providers may override it with a faster transfer.
+   */
+  public void download(String remotePath, OutputStream out) throws IOException {
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    int code = ssh("cat -- " + shellQuote(remotePath), out, stderr, 30000);
+    if (code != 0) {
+      throw new IOException(
+          String.format(
+              "download of %s failed: %s",
+              remotePath, new String(stderr.toByteArray(), StandardCharsets.UTF_8).trim()));
+    }
+  }
+
+  /** Copy a file on the node to a local file, replacing it. */
+  public void download(String remotePath, Path localPath) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            localPath,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      download(remotePath, Channels.newOutputStream(channel));
+    }
+  }
+
+  static String shellQuote(String s) {
+    return "'" + s.replace("'", "'\\''") + "'";
+  }
+
+  /**
+   * Start sampling the node's CPU, memory, disk and network use at an interval, see {@link
+   * Telemetry}. The samples stream over one command, so the node must override the streaming
+   * {@link #sshAsync(String, OutputStream, OutputStream, long)}.
+   */
+  public Telemetry startTelemetry(long intervalMillis) throws IOException {
+    return Telemetry.start(this, intervalMillis, 30000);
+  }
+
+  /** Start a batch of commands to run over a single channel. */
+  public Batch batch() {
+    return new Batch();
+  }
+
+  /**
+   * A list of commands run one after another by a single framed script, so that the whole batch
+   * costs one channel and one round trip. Each command gets its own exit status, stdout and stderr.
+   * Commands run in separate shells, so state such as the working directory does not carry over.
+   * The script is fed to the shell on stdin, so a batch is not limited by the size of a command
+   * line.
+   */
+  public class Batch {
+    private final List<String> commands = new ArrayList<>();
+    private boolean failFast = true;
+
+    private Batch() {}
+
+    public Batch add(String command) {
+      commands.add(command);
+      return this;
+    }
+
+    /**
+     * Choose whether to stop at the first command that exits non-zero (the default), or to run
+     * every command regardless.
+     */
+    public Batch setFailFast(boolean failFast) {
+      this.failFast = failFast;
+      return this;
+    }
+
+    /**
+     * Run the batch. When failing fast, the returned list ends with the first failed command.
+     */
+    public List<SSHResult> run() throws IOException {
+      return run(30000);
+    }
+
+    public List<SSHResult> run(long connectionTimeoutMillis) throws IOException {
+      if (commands.isEmpty()) {
+        return List.of();
+      }
+
+      String marker = "virtualtests-batch-" + UUID.randomUUID();
+      byte[] script = script(marker).getBytes(StandardCharsets.UTF_8);
+      try (SSHResult result =
+          ssh("sh -s", new ByteArrayInputStream(script), connectionTimeoutMillis)) {
+        List<SSHResult> results = parse(marker, result);
+
+        // No results at all means the script failed before its first command finished.
+        boolean stopped =
+            failFast
+                && !results.isEmpty()
+                && results.get(results.size() - 1).getReturnCode() != 0;
+        if (results.size() != commands.size() && !stopped) {
+          throw new IOException(
+              String.format(
+                  "batch ended after %d of %d commands: %s",
+                  results.size(),
+                  commands.size(),
+                  new String(result.getStderr(), StandardCharsets.UTF_8)));
+        }
+        return results;
+      }
+    }
+
+    /** Run the batch, throwing for the first command that exits non-zero. */
+    public List<SSHResult> mustRun() throws IOException {
+      List<SSHResult> results = run();
+      for (SSHResult r : results) {
+        if (r.getReturnCode() != 0) {
+          throw new SSHException(r);
+        }
+      }
+      return results;
+    }
+
+    private String script(String marker) {
+      StringBuilder script = new StringBuilder();
+      script.append("d=$(mktemp -d) || exit 1\n");
+      script.append("trap 'rm -rf \"$d\"' EXIT\n");
+
+      for (int i = 0; i < commands.size(); i++) {
+        String quoted = "'" + commands.get(i).replace("'", "'\\''") + "'";
+        script.append("sh -c ").append(quoted).append(" </dev/null >\"$d/o\" 2>\"$d/e\"; r=$?\n");
+        script
+            .append("printf '%s %d %d %d %d\\n' ")
+            .append(marker)
+            .append(' ')
+            .append(i)
+            .append(" \"$r\" \"$(wc -c <\"$d/o\")\" \"$(wc -c <\"$d/e\")\"\n");
+        script.append("cat \"$d/o\" \"$d/e\"\n");
+        if (failFast) {
+          script.append("[ \"$r\" -eq 0 ] || exit 0\n");
+        }
+      }
+
+      return script.toString();
+    }
+
+    private List<SSHResult> parse(String marker, SSHResult result) throws IOException {
+      List<SSHResult> results = new ArrayList<>(commands.size());
+
+      try (DataInputStream in = new DataInputStream(result.getStdoutStream())) {
+        while (true) {
+          String header = readLine(in);
+          if (header == null) {
+            return results;
+          }
+
+          String[] fields = header.split(" ");
+          if (fields.length != 5
+              || !fields[0].equals(marker)
+              || Integer.parseInt(fields[1]) != results.size()) {
+            throw new IOException("malformed batch output: " + header);
+          }
+
+          int returnCode = Integer.parseInt(fields[2]);
+          byte[] stdout = new byte[Integer.parseInt(fields[3])];
+          byte[] stderr = new byte[Integer.parseInt(fields[4])];
+          in.readFully(stdout);
+          in.readFully(stderr);
+
+          results.add(new SSHResult(returnCode, stdout, stderr));
+        }
+      } catch (NumberFormatException | EOFException e) {
+        throw new IOException("malformed batch output", e);
+      }
+    }
+
+    private String readLine(DataInputStream in) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b == -1) {
+          if (line.size() == 0) {
+            return null;
+          }
+          throw new EOFException();
+        }
+        line.write(b);
+      }
+      return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * The result of a buffered command. Output past a node's spill threshold is held in temporary
+   * files, which closing the result deletes.
+   */
+  public static class SSHResult implements AutoCloseable {
     private final int returnCode;
     private final byte[] stdout;
     private final byte[] stderr;
+    private final SpillOutputStream spilledStdout;
+    private final SpillOutputStream spilledStderr;
 
     protected SSHResult(int returnCode, byte[] stdout, byte[] stderr) {
       this.returnCode = returnCode;
       this.stdout = stdout;
       this.stderr = stderr;
+      this.spilledStdout = null;
+      this.spilledStderr = null;
+    }
+
+    protected SSHResult(int returnCode, SpillOutputStream stdout, SpillOutputStream stderr) {
+      this.returnCode = returnCode;
+      this.stdout = null;
+      this.stderr = null;
+      this.spilledStdout = stdout;
+      this.spilledStderr = stderr;
     }
 
     public int getReturnCode() {
       return returnCode;
     }
 
+    /** Read all of stdout into memory. Prefer {@link #getStdoutStream()} for large outputs. */
     public byte[] getStdout() {
-      return stdout;
+      return stdout != null ? stdout : read(spilledStdout);
     }
 
+    /** Read all of stderr into memory. Prefer {@link #getStderrStream()} for large outputs. */
     public byte[] getStderr() {
-      return stderr;
+      return stderr != null ? stderr : read(spilledStderr);
+    }
+
+    public InputStream getStdoutStream() throws IOException {
+      return stdout != null ? new ByteArrayInputStream(stdout) : spilledStdout.openInputStream();
+    }
+
+    public InputStream getStderrStream() throws IOException {
+      return stderr != null ? new ByteArrayInputStream(stderr) : spilledStderr.openInputStream();
+    }
+
+    public long getStdoutSize() {
+      return stdout != null ? stdout.length : spilledStdout.size();
+    }
+
+    public long getStderrSize() {
+      return stderr != null ? stderr.length : spilledStderr.size();
+    }
+
+    private static byte[] read(SpillOutputStream stream) {
+      try {
+        return stream.toByteArray();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (spilledStdout != null) {
+        spilledStdout.delete();
+      }
+      if (spilledStderr != null) {
+        spilledStderr.delete();
+      }
     }
   }
 
@@ -3,7 +3,38 @@ package uk.co.hillion.jake.virtualtests.providers;
 import uk.co.hillion.jake.virtualtests.structure.Blueprint;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 public interface Provider {
   Environment build(Blueprint blueprint) throws ImpossibleBlueprintException, IOException;
+
+  /**
+   * Bring an environment this provider built in line with a new blueprint, and return it. Nodes and
+   * bridges the new blueprint still needs are kept, and setup runs only on the nodes that are new.
+   * A node whose setup depends on that of a new node is rebuilt too, as it ran against another.
+   * The given environment must not be used afterwards; if the update fails, all of it is closed.
+   *
+   * <p>By default this builds the new blueprint from scratch and then closes the old environment.
+   */
+  default Environment update(Environment environment, Blueprint blueprint)
+      throws ImpossibleBlueprintException, IOException {
+    Environment updated;
+    try {
+      updated = build(blueprint);
+    } catch (ImpossibleBlueprintException | IOException | RuntimeException e) {
+      environment.close();
+      throw e;
+    }
+    environment.close();
+    return updated;
+  }
+
+  /**
+   * Build the blueprint without blocking the caller. Cancelling the returned future, or timing it
+   * out with {@link CompletableFuture#orTimeout}, interrupts the build, which then cleans up after
+   * itself as it would on failure.
+   */
+  default CompletableFuture<Environment> buildAsync(Blueprint blueprint) {
+    return AsyncUtils.supply(() -> build(blueprint));
+  }
 }
@@ -2,10 +2,12 @@ package uk.co.hillion.jake.virtualtests.providers;
 
 import com.google.common.net.InetAddresses;
 import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.KeyPair;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
 import uk.co.hillion.jake.proxmox.Network;
 import uk.co.hillion.jake.proxmox.ProxmoxAPI;
 import uk.co.hillion.jake.proxmox.Qemu;
@@ -19,37 +21,75 @@ import uk.co.hillion.jake.virtualtests.structure.Template;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
-public class Proxmox implements Provider {
-  private final long RefreshInterval = 1000L;
+public class Proxmox implements Provider, AutoCloseable {
+  private final long LayerCaptureTimeout = 600000L;
+
+  private static final long ReadyInitialIntervalMillis = 250;
+  private static final long ReadyMaxIntervalMillis = 4000;
+
+  // Succeeds once cloud-init has finished its first boot, or straight away without cloud-init.
+  private static final String BootFinished =
+      "! command -v cloud-init >/dev/null 2>&1"
+          + " || test -e /etc/cloud/cloud-init.disabled"
+          + " || test -e /var/lib/cloud/instance/boot-finished";
 
   private final ProxmoxAuth auth;
   private final ProxmoxConfig config;
-  private final ProxmoxAPI api;
+  private final ProxmoxClient client;
 
   private final String publicKey;
   private final JSch ssh;
 
+  private final IdAllocator vmIds;
+  private final IdAllocator bridgeIds;
+  private final TaskWatcher tasks;
+  private final Tracer tracer;
+
+  private final LayerCache layers;
+  private final Reaper reaper;
+
+  private final ClusterPlacement placement = new ClusterPlacement();
+  private final Map<Integer, String> vmHosts = new ConcurrentHashMap<>();
+
+  private final Map<Shape, WarmPool> warmPools = new HashMap<>();
+  private final ExecutorService warmExecutor =
+      Executors.newCachedThreadPool(AsyncUtils.threadFactory("virtualtests-warm"));
+
   public Proxmox(ProxmoxAuth auth, ProxmoxConfig config) {
     this(auth, config, true);
   }
@@ -57,10 +97,33 @@ public class Proxmox implements Provider {
   public Proxmox(ProxmoxAuth auth, ProxmoxConfig config, boolean verifySsl) {
     this.auth = auth;
     this.config = config;
-
-    api = new ProxmoxAPI(auth.host, auth.user, auth.tokenName, auth.token, verifySsl);
+    this.tracer = new Tracer(config.buildListener);
+
+    client =
+        new ProxmoxClient(
+            new ProxmoxAPI(auth.host, auth.user, auth.tokenName, auth.token, verifySsl),
+            tracer,
+            config.apiConcurrency,
+            config.apiCacheTtlMillis);
     ssh = new JSch();
 
+    vmIds =
+        new IdAllocator(this::listVmIds, config.initialVmId == null ? 100 : config.initialVmId);
+    bridgeIds =
+        new IdAllocator(
+            () ->
+                Arrays.stream(client.listNetworks(auth.node))
+                    .map(Network::getIface)
+                    .filter(x -> x.matches("vmbr\\d+"))
+                    .map(x -> Integer.parseInt(x.substring(4)))
+                    .collect(Collectors.toSet()),
+            0);
+    tasks =
+        new TaskWatcher(
+            upid -> client.getTaskStatus(taskNode(upid), upid) == Task.Status.EStatus.STOPPED,
+            config.taskInitialIntervalMillis,
+            config.taskMaxIntervalMillis);
+
     try {
       KeyPair keypair = KeyPair.genKeyPair(ssh, KeyPair.RSA, 2048);
       publicKey = Base64.getEncoder().encodeToString(keypair.getPublicKeyBlob());
@@ -73,10 +136,112 @@ public class Proxmox implements Provider {
     } catch (JSchException e) {
       throw new RuntimeException(e);
     }
+
+    try {
+      layers =
+          config.layerDirectory == null
+              ? null
+              : new LayerCache(config.layerDirectory, config.maxLayers, config.maxLayerAgeMillis);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    if (config.clusterNodes.isEmpty()) {
+      placement.addNode(auth.node, Integer.MAX_VALUE, Long.MAX_VALUE);
+    } else {
+      config.clusterNodes.forEach((node, c) -> placement.addNode(node, (int) c[0], c[1]));
+    }
+
+    reaper =
+        new Reaper(
+            new Reaper.Target() {
+              @Override
+              public void deleteVm(int id) throws IOException {
+                destroyVm(id);
+              }
+
+              @Override
+              public void deleteBridge(String name) throws IOException {
+                Proxmox.this.deleteBridge(name);
+              }
+
+              @Override
+              public void reloadNetwork() throws IOException {
+                awaitTask(reloadNetworkAsync());
+              }
+            },
+            5,
+            1000);
+
+    for (Map.Entry<Shape, Integer> e : config.warmPools.entrySet()) {
+      WarmPool pool = new WarmPool(e.getKey(), e.getValue());
+      warmPools.put(e.getKey(), pool);
+      pool.refill();
+    }
+  }
+
+  /**
+   * Delete every warm machine not yet taken by a build, and wait for released nodes and bridges to
+   * be reaped. Environments still in use are unaffected.
+   */
+  @Override
+  public void close() throws IOException {
+    // Fills already running finish first, so every machine they clone is either drained below or
+    // handed to the reaper rather than outliving the provider.
+    for (WarmPool pool : warmPools.values()) {
+      pool.close();
+    }
+    warmExecutor.shutdown();
+    try {
+      if (!warmExecutor.awaitTermination(config.reaperTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        warmExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      warmExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+
+    IOException failure = null;
+    for (WarmPool pool : warmPools.values()) {
+      try {
+        pool.drain();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    try {
+      reaper.flush(config.reaperTimeoutMillis);
+    } catch (IOException e) {
+      failure = e;
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
   }
 
   @Override
   public Environment build(Blueprint blueprint) throws ImpossibleBlueprintException, IOException {
+    BuildListener.Span span =
+        tracer.span(
+            "build",
+            "nodes",
+            blueprint.getNodes().size(),
+            "bridges",
+            blueprint.getBridges().size());
+    try {
+      return buildEnvironment(blueprint);
+    } catch (ImpossibleBlueprintException | IOException | RuntimeException e) {
+      span.fail(e);
+      throw e;
+    } finally {
+      span.close();
+    }
+  }
+
+  private Environment buildEnvironment(Blueprint blueprint)
+      throws ImpossibleBlueprintException, IOException {
     // Check blueprint compatibility
     for (Template t : blueprint.getNodes()) {
       checkTemplate(t);
@@ -86,75 +251,353 @@ public class Proxmox implements Provider {
       checkBridgeRequest(b);
     }
 
-    // Build environment for blueprint
-    List<Node> machines = new ArrayList<>(blueprint.getNodes().size());
-    for (Template t : blueprint.getNodes()) {
-      machines.add(buildMachine(t));
+    SetupGraph setup = SetupGraph.create(this, blueprint.getNodes());
+    List<String> hosts = place(blueprint);
+
+    List<LayerPlan> plans;
+    try {
+      plans = planLayers(setup, blueprint.getNodes(), hosts);
+    } catch (IOException | RuntimeException e) {
+      for (int i = 0; i < hosts.size(); i++) {
+        Template t = blueprint.getNodes().get(i);
+        placement.release(hosts.get(i), t.getCoreCount(), t.getMemoryMb());
+      }
+      throw e;
     }
-    machines = Collections.unmodifiableList(machines);
 
-    List<Bridge> bridges = new ArrayList<>(blueprint.getBridges().size());
-    for (BridgeRequest request : blueprint.getBridges()) {
-      bridges.add(buildBridge(request));
+    // Build environment for blueprint
+    List<Node> machines =
+        Collections.unmodifiableList(
+            tracer.call("machines", () -> buildMachines(blueprint.getNodes(), hosts, plans)));
+
+    List<Bridge> bridges;
+    try {
+      bridges =
+          tracer.call(
+              "bridges",
+              () -> buildBridges(blueprint.getBridges()),
+              "count",
+              blueprint.getBridges().size());
+    } catch (IOException | RuntimeException e) {
+      new Environment(machines, List.of()).close();
+      throw e;
     }
-    bridges = Collections.unmodifiableList(bridges);
 
     Environment env = new Environment(machines, bridges);
 
     // Setup environment according to blueprint
     try {
-      List<Map.Entry<Node, Template.SetupStage>> stages =
-          machines.stream()
-              .map(n -> Map.entry(n, n.getTemplate().getSetup()))
-              .flatMap(e -> e.getValue().stream().map(f -> Map.entry(e.getKey(), f)))
-              .sorted(Map.Entry.comparingByValue())
-              .collect(Collectors.toList());
-
-      ExecutorService executor = Executors.newSingleThreadExecutor();
-      try {
-        while (!stages.isEmpty()) {
-          int currentOrder = stages.get(0).getValue().getOrder();
+      runSetup(setup, plans, machines, env);
+
+      if (config.resettable) {
+        tracer.call(
+            "reset.capture",
+            () -> {
+              captureResetImages(machines);
+              return null;
+            });
+      }
+    } catch (Exception e) {
+      env.close();
+      throw e;
+    }
 
-          List<Future<Void>> currentStages = new ArrayList<>();
-          while (!stages.isEmpty() && stages.get(0).getValue().getOrder() == currentOrder) {
-            Map.Entry<Node, Template.SetupStage> stage = stages.remove(0);
+    return env;
+  }
+
+  /** Run every setup stage that its node's layer plan does not skip. */
+  private void runSetup(
+      SetupGraph setup, List<LayerPlan> plans, List<Node> machines, Environment env)
+      throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(config.setupConcurrency);
+    BuildListener.Span setupSpan = tracer.span("setup", "stages", setup.size());
+    try {
+      setup.run(
+          executor,
+          config.setupConcurrency,
+          (node, stage) -> {
+            LayerPlan plan = plans.get(node);
+            if (plan.skipped.contains(stage)) {
+              return;
+            }
+
+            Machine machine = (Machine) machines.get(node);
+            tracer.call(
+                "stage",
+                () -> {
+                  stage.getFoo().setup(env, machine);
+                  return null;
+                },
+                "vmid",
+                machine.id,
+                "template",
+                machine.getTemplate().getName(),
+                "order",
+                stage.getOrder(),
+                "index",
+                node);
+
+            if (stage == plan.captureAfter) {
+              captureLayer(machine, plan.captureKey);
+            }
+          });
+    } catch (IOException | RuntimeException e) {
+      setupSpan.fail(e);
+      throw e;
+    } finally {
+      setupSpan.close();
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Update an environment built by this provider to a new blueprint, see {@link
+   * Provider#update}. Nodes whose templates gained cores, memory or interfaces, or lost cores or
+   * memory, are shut down, reconfigured and booted again without rerunning their setup. Other
+   * changed nodes are replaced. Bridges are matched by position, so surplus ones are removed and
+   * missing ones added. Removals happen first, so their capacity is free for what is added.
+   */
+  @Override
+  public Environment update(Environment environment, Blueprint blueprint)
+      throws ImpossibleBlueprintException, IOException {
+    BuildListener.Span span =
+        tracer.span(
+            "update",
+            "nodes",
+            blueprint.getNodes().size(),
+            "bridges",
+            blueprint.getBridges().size());
+    try {
+      return updateEnvironment(environment, blueprint);
+    } catch (ImpossibleBlueprintException | IOException | RuntimeException e) {
+      span.fail(e);
+      throw e;
+    } finally {
+      span.close();
+    }
+  }
+
+  private Environment updateEnvironment(Environment environment, Blueprint blueprint)
+      throws ImpossibleBlueprintException, IOException {
+    List<Machine> current = new ArrayList<>();
+    for (Node n : environment.getNodes()) {
+      if (!(n instanceof Machine) || ((Machine) n).provider() != this) {
+        environment.close();
+        throw new IllegalArgumentException("environment was not built by this provider");
+      }
+      current.add((Machine) n);
+    }
+
+    List<Template> templates = blueprint.getNodes();
+    UpdatePlan plan;
+    SetupGraph setup;
+    try {
+      for (Template t : templates) {
+        checkTemplate(t);
+      }
+      for (BridgeRequest b : blueprint.getBridges()) {
+        checkBridgeRequest(b);
+      }
+      setup = SetupGraph.create(this, templates);
+
+      plan =
+          UpdatePlan.create(
+              current.stream().map(Node::getTemplate).collect(Collectors.toList()),
+              templates,
+              (from, to) -> to.getInterfaces() >= from.getInterfaces());
+    } catch (ImpossibleBlueprintException | RuntimeException e) {
+      environment.close();
+      throw e;
+    }
+
+    // Bridges are local to the default node, so nodes elsewhere cannot be kept to join them.
+    if (!blueprint.getBridges().isEmpty()) {
+      for (int i = 0; i < plan.size(); i++) {
+        if (plan.getAction(i) != UpdatePlan.Action.ADD
+            && !current.get(plan.getSource(i)).host.equals(auth.node)) {
+          plan.replace(i);
+        }
+      }
+    }
+    // A replacement has a new management address, which any setup that depended on it must see.
+    plan.replaceDependents(setup);
 
-            Future<Void> future =
-                executor.submit(
+    List<Bridge> currentBridges = environment.getBridges();
+    int keptBridges = Math.min(currentBridges.size(), blueprint.getBridges().size());
+
+    List<Node> removed = new ArrayList<>();
+    for (int i : plan.getRemoved()) {
+      removed.add(current.get(i));
+    }
+
+    List<Node> live = new ArrayList<>();
+    for (int i = 0; i < plan.size(); i++) {
+      if (plan.getAction(i) != UpdatePlan.Action.ADD) {
+        live.add(current.get(plan.getSource(i)));
+      }
+    }
+    List<Bridge> liveBridges = new ArrayList<>(currentBridges.subList(0, keptBridges));
+
+    try {
+      tracer.call(
+          "remove",
+          () -> {
+            new Environment(removed, currentBridges.subList(keptBridges, currentBridges.size()))
+                .close();
+            return null;
+          },
+          "nodes",
+          removed.size(),
+          "bridges",
+          currentBridges.size() - keptBridges);
+
+      List<String> hosts = placeUpdate(blueprint, plan, current);
+
+      List<LayerPlan> plans = planLayers(setup, templates, hosts);
+      List<CompletableFuture<Void>> reconfigures = new ArrayList<>();
+      List<Template> added = new ArrayList<>();
+      List<String> addedHosts = new ArrayList<>();
+      List<LayerPlan> addedPlans = new ArrayList<>();
+      for (int i = 0; i < plan.size(); i++) {
+        Template t = templates.get(i);
+        switch (plan.getAction(i)) {
+          case KEEP:
+            current.get(plan.getSource(i)).setTemplate(t);
+            plans.set(i, LayerPlan.skipping(setup.getStages(i)));
+            break;
+          case RECONFIGURE:
+            // The new template's capacity is committed, so record it before anything can fail.
+            Machine m = current.get(plan.getSource(i));
+            Template from = m.getTemplate();
+            m.setTemplate(t);
+            reconfigures.add(
+                AsyncUtils.supply(
                     () -> {
-                      stage.getValue().getFoo().setup(env, stage.getKey());
+                      m.reconfigure(from);
                       return null;
-                    });
-
-            currentStages.add(future);
-          }
+                    }));
+            plans.set(i, LayerPlan.skipping(setup.getStages(i)));
+            break;
+          case ADD:
+            added.add(t);
+            addedHosts.add(hosts.get(i));
+            addedPlans.add(plans.get(i));
+            break;
+        }
+      }
 
-          for (Future<Void> f : currentStages) {
-            try {
-              f.get();
-            } catch (InterruptedException e) {
-              throw new IOException(e);
-            } catch (ExecutionException e) {
-              if (e.getCause() instanceof IOException) {
-                throw (IOException) e.getCause();
-              }
-              throw new IOException(e);
-            }
-          }
+      List<Machine> built;
+      try {
+        built = tracer.call("machines", () -> buildMachines(added, addedHosts, addedPlans));
+      } catch (IOException | RuntimeException e) {
+        for (CompletableFuture<Void> r : reconfigures) {
+          r.handle((v, t) -> null).join();
         }
-      } finally {
-        executor.shutdownNow();
+        throw e;
       }
+      live.addAll(built);
+      AsyncUtils.get(
+          CompletableFuture.allOf(reconfigures.toArray(new CompletableFuture<?>[0])));
+
+      List<Node> machines = new ArrayList<>(plan.size());
+      Iterator<Machine> next = built.iterator();
+      for (int i = 0; i < plan.size(); i++) {
+        machines.add(
+            plan.getAction(i) == UpdatePlan.Action.ADD
+                ? next.next()
+                : current.get(plan.getSource(i)));
+      }
+
+      List<BridgeRequest> requests = blueprint.getBridges();
+      liveBridges.addAll(
+          tracer.call(
+              "bridges",
+              () -> buildBridges(requests.subList(keptBridges, requests.size())),
+              "count",
+              requests.size() - keptBridges));
+
+      Environment env = new Environment(machines, liveBridges);
+      runSetup(setup, plans, Collections.unmodifiableList(machines), env);
+
+      if (config.resettable) {
+        List<Node> unimaged =
+            machines.stream()
+                .filter(n -> ((Machine) n).resetImage == null)
+                .collect(Collectors.toList());
+        tracer.call(
+            "reset.capture",
+            () -> {
+              captureResetImages(unimaged);
+              return null;
+            });
+      }
+      return env;
     } catch (Exception e) {
-      env.close();
+      new Environment(live, liveBridges).close();
       throw e;
     }
+  }
+
+  /**
+   * Choose a host for every node of an update: kept and reconfigured nodes stay where they are,
+   * committing any extra cores and memory there, and added nodes are placed as in a build.
+   */
+  private List<String> placeUpdate(Blueprint blueprint, UpdatePlan plan, List<Machine> current)
+      throws ImpossibleBlueprintException {
+    List<Template> templates = blueprint.getNodes();
+    List<ClusterPlacement.Request> requests = new ArrayList<>();
+    List<Integer> requestNodes = new ArrayList<>();
+    for (int i = 0; i < plan.size(); i++) {
+      Template t = templates.get(i);
+      if (plan.getAction(i) == UpdatePlan.Action.ADD) {
+        Set<String> eligible = templateHosts(t.dist);
+        if (!blueprint.getBridges().isEmpty()) {
+          eligible = eligible.contains(auth.node) ? Set.of(auth.node) : Set.of();
+        }
+        requests.add(new ClusterPlacement.Request(t.getCoreCount(), t.getMemoryMb(), eligible));
+        requestNodes.add(i);
+      } else if (plan.getAction(i) == UpdatePlan.Action.RECONFIGURE) {
+        Machine m = current.get(plan.getSource(i));
+        requests.add(
+            new ClusterPlacement.Request(
+                Math.max(t.getCoreCount() - m.getTemplate().getCoreCount(), 0),
+                Math.max(t.getMemoryMb() - m.getTemplate().getMemoryMb(), 0),
+                Set.of(m.host)));
+        requestNodes.add(i);
+      }
+    }
 
-    return env;
+    List<String> placed = placement.place(requests, config.placement);
+    if (placed == null) {
+      throw new ImpossibleBlueprintException(
+          this, "updated blueprint does not fit in the free capacity of the cluster");
+    }
+
+    List<String> hosts = new ArrayList<>(plan.size());
+    for (int i = 0; i < plan.size(); i++) {
+      hosts.add(
+          plan.getAction(i) == UpdatePlan.Action.ADD ? null : current.get(plan.getSource(i)).host);
+    }
+    for (int r = 0; r < requestNodes.size(); r++) {
+      int i = requestNodes.get(r);
+      if (plan.getAction(i) == UpdatePlan.Action.ADD) {
+        hosts.set(i, placed.get(r));
+        continue;
+      }
+
+      // Hand back what a shrinking node no longer needs.
+      Template from = current.get(plan.getSource(i)).getTemplate();
+      Template to = templates.get(i);
+      placement.release(
+          placed.get(r),
+          Math.max(from.getCoreCount() - to.getCoreCount(), 0),
+          Math.max(from.getMemoryMb() - to.getMemoryMb(), 0));
+    }
+    return hosts;
   }
 
   private void checkTemplate(Template template) throws ImpossibleBlueprintException {
-    if (!config.templateMap.containsKey(template.dist)) {
+    if (templateHosts(template.dist).isEmpty()) {
       throw new ImpossibleBlueprintException(
           this, String.format("Proxmox missing template id for distribution `%s`", template.dist));
     }
@@ -165,48 +608,410 @@ public class Proxmox implements Provider {
     }
   }
 
+  /**
+   * Interfaces past the second are left for tests to attach, so the provider does not know which
+   * taps to shape, and cannot reach the host's tc through the API to shape them.
+   */
   private void checkBridgeRequest(BridgeRequest bridgeRequest)
-      throws ImpossibleBlueprintException {}
+      throws ImpossibleBlueprintException {
+    if (!bridgeRequest.getLinkProperties().isNone()) {
+      throw new ImpossibleBlueprintException(
+          this,
+          String.format(
+              "Proxmox cannot shape the links of a bridge (requested %s)",
+              bridgeRequest.getLinkProperties()));
+    }
+  }
+
+  /**
+   * Choose a cluster node for every machine of the blueprint, committing their cores and memory.
+   * Bridges are local to the default node, so a blueprint with bridges is placed there entirely.
+   */
+  private List<String> place(Blueprint blueprint) throws ImpossibleBlueprintException {
+    List<ClusterPlacement.Request> requests = new ArrayList<>(blueprint.getNodes().size());
+    for (Template t : blueprint.getNodes()) {
+      Set<String> eligible = templateHosts(t.dist);
+      if (!blueprint.getBridges().isEmpty()) {
+        eligible = eligible.contains(auth.node) ? Set.of(auth.node) : Set.of();
+      }
+      requests.add(new ClusterPlacement.Request(t.getCoreCount(), t.getMemoryMb(), eligible));
+    }
+
+    List<String> hosts = placement.place(requests, config.placement);
+    if (hosts == null) {
+      throw new ImpossibleBlueprintException(
+          this, "blueprint does not fit in the free capacity of the cluster");
+    }
+    return hosts;
+  }
+
+  /** The cluster nodes holding a template for the distribution. */
+  private Set<String> templateHosts(Distribution dist) {
+    Set<String> hosts = new HashSet<>();
+    if (config.templateMap.containsKey(dist)) {
+      hosts.add(auth.node);
+    }
+    config.nodeTemplateMaps.forEach(
+        (node, templates) -> {
+          if (templates.containsKey(dist)) {
+            hosts.add(node);
+          }
+        });
+    return hosts;
+  }
+
+  private int templateId(String host, Distribution dist) {
+    Map<Distribution, Integer> templates = config.nodeTemplateMaps.get(host);
+    if (templates != null && templates.containsKey(dist)) {
+      return templates.get(dist);
+    }
+    return config.templateMap.get(dist);
+  }
+
+  /** VM ids are unique across a cluster, so list every node this provider may use. */
+  private Set<Integer> listVmIds() throws IOException {
+    Set<String> nodes = new HashSet<>(config.clusterNodes.keySet());
+    nodes.add(auth.node);
+
+    Set<Integer> ids = new HashSet<>();
+    for (String node : nodes) {
+      for (Qemu q : client.listVms(node)) {
+        ids.add(q.getVmid());
+      }
+    }
+    return ids;
+  }
+
+  private String hostOf(int vmId) {
+    return vmHosts.getOrDefault(vmId, auth.node);
+  }
+
+  /** The node a task runs on, which Proxmox encodes as the second field of its UPID. */
+  private String taskNode(String upid) {
+    String[] fields = upid.split(":");
+    return fields.length > 1 && fields[0].equals("UPID") ? fields[1] : auth.node;
+  }
+
+  /**
+   * Decide, for each node, which cached layer to restore it from and which layer to capture. Only
+   * the deepest cacheable prefix of each node is captured, as capturing clones the running VM and
+   * holds up the node's next stage while it does.
+   */
+  private List<LayerPlan> planLayers(
+      SetupGraph setup, List<Template> templates, List<String> hosts) throws IOException {
+    List<LayerPlan> plans = new ArrayList<>(templates.size());
+
+    // Read the index before listing, so no layer it names can be too new to be listed.
+    Map<Integer, String> names = new HashMap<>();
+    if (layers != null) {
+      layers.refresh();
+      for (Qemu q : client.listVms(auth.node)) {
+        names.put(q.getVmid(), q.getName());
+      }
+    }
+
+    for (int node = 0; node < templates.size(); node++) {
+      LayerPlan plan = new LayerPlan();
+      plans.add(plan);
+      // Layers live on the default node, so only machines placed there use them.
+      if (layers == null || !hosts.get(node).equals(auth.node)) {
+        continue;
+      }
 
-  private Machine buildMachine(Template template) throws IOException {
-    Integer toClone = config.templateMap.get(template.dist);
-    int newId = findVmId();
+      List<Template.SetupStage> stages = setup.getStages(node);
+      List<String> keys = LayerCache.prefixKeys(templates.get(node).dist, stages);
 
-    String cloneJob =
-        api.node(auth.node)
-            .qemu(toClone)
-            .clone(
-                new Qemu.Clone(newId)
-                    .setName(template.getName())
-                    .setDescription("created by virtualtests"));
+      for (int depth = keys.size(); depth > 0; depth--) {
+        Integer id = layers.lookup(keys.get(depth - 1));
+        if (id != null && LayerCache.vmName(keys.get(depth - 1)).equals(names.get(id))) {
+          plan.sourceId = id;
+          plan.sourceKey = keys.get(depth - 1);
+          plan.skipped.addAll(stages.subList(0, depth));
+          break;
+        }
+      }
+
+      if (!keys.isEmpty() && plan.skipped.size() < keys.size()) {
+        plan.captureAfter = stages.get(keys.size() - 1);
+        plan.captureKey = keys.get(keys.size() - 1);
+      }
+    }
+
+    return plans;
+  }
 
-    awaitTask(cloneJob);
+  /**
+   * Clone a node's running VM into a cached layer. Caching is only an optimisation, so a failed
+   * capture is cleaned up and otherwise ignored.
+   */
+  private void captureLayer(Machine machine, String key) {
+    if (!layers.beginCapture(key)) {
+      return;
+    }
+
+    Integer layerId = null;
+    boolean cloned = false;
+    boolean committed = false;
+    BuildListener.Span span = tracer.span("layer.capture", "vmid", machine.id, "key", key);
+    try {
+      layerId = vmIds.reserve();
+      machine.mustSsh("sync");
+
+      int newId = layerId;
+      vmHosts.put(layerId, machine.host);
+      String cloneJob =
+          client.cloneVm(
+              machine.host,
+              machine.id,
+              new Qemu.Clone(newId)
+                  .setName(LayerCache.vmName(key))
+                  .setDescription("virtualtests setup layer " + key));
+      cloned = true;
+      awaitTask(cloneJob, LayerCaptureTimeout);
+
+      List<Integer> evicted = layers.commit(key, layerId);
+      committed = true;
+      for (int id : evicted) {
+        destroyVm(id);
+      }
+    } catch (IOException e) {
+      span.fail(e);
+    } finally {
+      span.close();
+      if (!committed) {
+        layers.abortCapture(key);
+        if (layerId != null && !cloned) {
+          vmHosts.remove(layerId);
+          vmIds.release(layerId);
+        } else if (layerId != null) {
+          // The clone may exist, so its id is only released once the reaper has deleted it.
+          reaper.reapVm(layerId);
+        }
+      }
+    }
+  }
+
+  /** Clone every node, in parallel, into the image it is reset to. */
+  private void captureResetImages(List<Node> machines) throws IOException {
+    List<CompletableFuture<Void>> captures = new ArrayList<>(machines.size());
+    for (Node n : machines) {
+      Machine m = (Machine) n;
+      captures.add(
+          AsyncUtils.supply(
+              () -> {
+                m.captureResetImage();
+                return null;
+              }));
+    }
+
+    AsyncUtils.get(CompletableFuture.allOf(captures.toArray(new CompletableFuture<?>[0])));
+  }
+
+  private List<Machine> buildMachines(
+      List<Template> templates, List<String> hosts, List<LayerPlan> plans) throws IOException {
+    if (templates.isEmpty()) {
+      return List.of();
+    }
 
+    // One listing per build picks up machines created outside this provider since the last one.
+    vmIds.invalidate();
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(config.buildConcurrency, templates.size()));
+    List<Future<Machine>> futures = new ArrayList<>(templates.size());
+    try {
+      for (int i = 0; i < templates.size(); i++) {
+        Template t = templates.get(i);
+        String host = hosts.get(i);
+        LayerPlan plan = plans.get(i);
+        futures.add(executor.submit(() -> buildMachine(t, host, plan)));
+      }
+
+      try {
+        return awaitAll(futures);
+      } catch (IOException e) {
+        // Hand the machines that did get built to the reaper, so a failed build leaves nothing
+        // behind. Releasing a machine returns its capacity; return the capacity of the others
+        // directly, as they cleaned up their own VMs when they failed.
+        for (int i = 0; i < futures.size(); i++) {
+          Machine built;
+          try {
+            built = futures.get(i).get();
+          } catch (Exception ignored) {
+            Template t = templates.get(i);
+            placement.release(hosts.get(i), t.getCoreCount(), t.getMemoryMb());
+            continue;
+          }
+          built.release();
+        }
+        throw e;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Machine buildMachine(Template template, String host, LayerPlan plan)
+      throws IOException {
+    return tracer.call(
+        "machine",
+        () -> buildMachineTraced(template, host, plan),
+        "template",
+        template.getName(),
+        "host",
+        host);
+  }
+
+  private Machine buildMachineTraced(Template template, String host, LayerPlan plan)
+      throws IOException {
+    Shape shape = Shape.of(template);
+
+    if (plan.sourceId != null) {
+      Machine restored = restoreMachine(template, plan);
+      if (restored != null) {
+        return restored;
+      }
+    }
+
+    // Warm machines live on the default node, so only machines placed there use them.
+    WarmPool pool = host.equals(auth.node) ? warmPools.get(shape) : null;
+    if (pool != null) {
+      Integer warmId = pool.take();
+      if (warmId != null) {
+        try {
+          client.configureVm(
+              host, warmId, new QemuConfig.SyncUpdate().setName(template.getName()));
+          return new Machine(template, warmId, true);
+        } catch (IOException e) {
+          reaper.reapVm(warmId);
+        }
+      }
+    }
+
+    int newId = vmIds.reserve();
+    provisionVm(shape, template.getName(), newId, host, templateId(host, shape.dist));
+    return new Machine(template, newId, false);
+  }
+
+  /**
+   * Clone a node from its cached layer and boot it, as layers are captured from running machines.
+   * If the layer turns out to be unusable it is forgotten, and null is returned so the node is
+   * built from scratch with all of its stages.
+   */
+  private Machine restoreMachine(Template template, LayerPlan plan) throws IOException {
+    int newId = vmIds.reserve();
+    try {
+      provisionVm(
+          Shape.of(template), template.getName(), newId, hostOf(plan.sourceId), plan.sourceId);
+    } catch (IOException e) {
+      layers.forget(plan.sourceKey);
+      plan.sourceId = null;
+      plan.skipped.clear();
+      return null;
+    }
+
+    Machine machine = new Machine(template, newId, false);
+    try {
+      machine.start();
+    } catch (IOException | RuntimeException e) {
+      machine.close();
+      throw e;
+    }
+    machine.running = true;
+    return machine;
+  }
+
+  /**
+   * Clone a VM on a host, by default the shape's distribution template, and configure it for the
+   * shape, into an id reserved by the caller.
+   *
+   * <p>A failure leaves nothing behind for the caller to clean up. If the clone was never started
+   * the id is released straight away. Otherwise the VM may exist, so it is handed to the reaper,
+   * which releases the id only once the VM is deleted.
+   */
+  private void provisionVm(Shape shape, String name, int newId, String host, int toClone)
+      throws IOException {
+    copyVm(host, toClone, newId, name, "created by virtualtests", 30000);
+    try {
+      configureVm(shape, newId, host);
+    } catch (IOException | RuntimeException e) {
+      reaper.reapVm(newId);
+      throw e;
+    }
+  }
+
+  /**
+   * Clone a VM on a host into an id reserved by the caller, keeping the source's configuration. As
+   * with {@link #provisionVm}, a failure leaves nothing behind for the caller to clean up.
+   */
+  private void copyVm(
+      String host, int source, int newId, String name, String description, long timeoutMillis)
+      throws IOException {
+    vmHosts.put(newId, host);
+
+    String[] cloneJob = new String[1];
+    try {
+      tracer.call(
+          "clone",
+          () -> {
+            cloneJob[0] =
+                client.cloneVm(
+                    host, source, new Qemu.Clone(newId).setName(name).setDescription(description));
+            awaitTask(cloneJob[0], timeoutMillis);
+            return null;
+          },
+          "vmid",
+          newId,
+          "source",
+          source,
+          "host",
+          host);
+    } catch (IOException | RuntimeException e) {
+      if (cloneJob[0] == null) {
+        vmHosts.remove(newId);
+        vmIds.release(newId);
+      } else {
+        reaper.reapVm(newId);
+      }
+      throw e;
+    }
+  }
+
+  private void configureVm(Shape shape, int newId, String host) throws IOException {
     String sshKeys =
         URLEncoder.encode("ssh-rsa " + publicKey, StandardCharsets.US_ASCII).replace("+", "%20");
 
     QemuConfig.SyncUpdate newConfig =
         new QemuConfig.SyncUpdate()
             .setSockets(1)
-            .setCores(template.getCoreCount())
-            .setMemory(template.getMemoryMb())
+            .setCores(shape.cores)
+            .setMemory(shape.memoryMb)
             .setCiuser("root")
             .setNet(new HashMap<>())
             .setIpconfig(new HashMap<>())
             .setSshkeys(sshKeys);
 
+    for (int i = 0; i < shape.interfaces; i++) {
+      putInterface(newConfig, newId, i);
+    }
+
+    client.configureVm(host, newId, newConfig);
+  }
+
+  private void putInterface(QemuConfig.SyncUpdate newConfig, int vmId, int index) {
     // Set up first interface as management (immutable)
-    if (template.getInterfaces() > 0) {
+    if (index == 0) {
       newConfig.net.put(0, String.format("model=virtio,bridge=%s", config.managementBridge));
 
-      InetAddress managementAddress = getManagementAddress(newId);
+      InetAddress managementAddress = getManagementAddress(vmId);
       newConfig.ipconfig.put(
           0,
           String.format("ip=%s/%d", managementAddress.getHostAddress(), config.managementNetmask));
+      return;
     }
 
     // Set up second interface as Internet (mutable)
-    if (template.getInterfaces() > 1) {
+    if (index == 1) {
       if (config.internetBridge != null) {
         newConfig.net.put(1, String.format("model=virtio,bridge=%s", config.internetBridge));
       } else {
@@ -214,15 +1019,35 @@ public class Proxmox implements Provider {
       }
 
       newConfig.ipconfig.put(1, "ip=dhcp");
+      return;
     }
 
     // Leave future interfaces empty for manual setup
-    for (int i = 2; i < template.getInterfaces(); i++) {
-      newConfig.net.put(i, "model=virtio");
-    }
+    newConfig.net.put(index, "model=virtio");
+  }
 
-    api.node(auth.node).qemu(newId).config().put(newConfig);
-    return new Machine(template, newId);
+  /** Stop, if running, and delete a VM, handing its id back to the allocator. */
+  private void destroyVm(int id) throws IOException {
+    deleteVm(id);
+    vmHosts.remove(id);
+    vmIds.release(id);
+  }
+
+  /** Stop, if running, and delete a VM, keeping its id reserved. */
+  private void deleteVm(int id) throws IOException {
+    String host = hostOf(id);
+    tracer.call(
+        "delete",
+        () -> {
+          QemuStatus status = client.getVmStatus(host, id);
+          if (status.getStatus() == QemuStatus.Status.RUNNING) {
+            awaitTask(client.stopVm(host, id));
+          }
+          awaitTask(client.deleteVm(host, id));
+          return null;
+        },
+        "vmid",
+        id);
   }
 
   private InetAddress getManagementAddress(int vmId) {
@@ -237,56 +1062,91 @@ public class Proxmox implements Provider {
     }
   }
 
-  private int findVmId() throws IOException {
-    int initialId = config.initialVmId == null ? 100 : config.initialVmId;
+  /**
+   * Create every bridge of a blueprint as one batch: the host's bridges are listed once, all new
+   * bridges are posted, and a single network reload applies them. Reloading after the batch also
+   * keeps the next listing free of the odd data Proxmox reports for pending changes.
+   */
+  private List<Bridge> buildBridges(List<BridgeRequest> requests) throws IOException {
+    if (requests.isEmpty()) {
+      return List.of();
+    }
 
-    Set<Integer> occupied =
-        Arrays.stream(api.node(auth.node).qemus().get())
-            .map(Qemu::getVmid)
-            .filter(i -> i >= initialId)
-            .collect(Collectors.toSet());
+    bridgeIds.invalidate();
 
-    for (int newId = initialId; true; newId++) {
-      if (!occupied.contains(newId)) {
-        return newId;
+    List<Integer> ids = new ArrayList<>(requests.size());
+    List<LinuxBridge> bridges = new ArrayList<>(requests.size());
+    try {
+      for (int i = 0; i < requests.size(); i++) {
+        ids.add(bridgeIds.reserve());
       }
-    }
-  }
 
-  private LinuxBridge buildBridge(BridgeRequest request) throws IOException {
-    String newName = "vmbr" + findBridgeId();
-
-    api.node(auth.node)
-        .networks()
-        .post(
+      for (int id : ids) {
+        String newName = "vmbr" + id;
+        client.createNetwork(
+            auth.node,
             new Network.Create()
                 .setIface(newName)
                 .setAutostart(true)
                 .setType(Network.Create.Type.BRIDGE)
                 .setComments("Created by VirtualTests"));
+        bridges.add(new LinuxBridge(newName));
+      }
 
-    // Doing this every time is quite inefficient, but it avoids the networks.get
-    // call having to deal with some really weird data next time.
-    String task = api.node(auth.node).networks().put();
-    awaitTask(task);
+      awaitTask(reloadNetworkAsync());
+    } catch (IOException | RuntimeException e) {
+      for (LinuxBridge b : bridges) {
+        try {
+          deleteNetwork(b.bridge);
+        } catch (IOException ignored) {
+        }
+      }
+      ids.forEach(bridgeIds::release);
+      throw e;
+    }
 
-    return new LinuxBridge(newName);
+    return List.copyOf(bridges);
   }
 
-  private int findBridgeId() throws IOException {
-    Set<Integer> occupied =
-        Arrays.stream(api.node(auth.node).networks().get())
-            .map(Network::getIface)
-            .filter(x -> x.startsWith("vmbr"))
-            .map(x -> x.substring(4))
-            .map(Integer::parseInt)
-            .collect(Collectors.toSet());
+  /** Stage the removal of a bridge, to be applied by the next network reload. */
+  private void deleteBridge(String name) throws IOException {
+    deleteNetwork(name);
+    if (name.matches("vmbr\\d+")) {
+      bridgeIds.release(Integer.parseInt(name.substring(4)));
+    }
+  }
 
-    for (int newId = 0; true; newId++) {
-      if (!occupied.contains(newId)) {
-        return newId;
+  private void deleteNetwork(String name) throws IOException {
+    client.deleteNetwork(auth.node, name);
+  }
+
+  /** Start applying staged network changes on the default node, returning the task's UPID. */
+  private String reloadNetworkAsync() throws IOException {
+    return client.reloadNetworks(auth.node);
+  }
+
+  private static <T> List<T> awaitAll(List<Future<T>> futures) throws IOException {
+    List<T> results = new ArrayList<>(futures.size());
+    IOException failure = null;
+
+    for (Future<T> f : futures) {
+      try {
+        results.add(f.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure =
+              e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
+        }
       }
     }
+
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
   }
 
   private void awaitTask(String job) throws IOException {
@@ -294,20 +1154,181 @@ public class Proxmox implements Provider {
   }
 
   private void awaitTask(String upid, long timeoutMillis) throws IOException {
-    long startTime = System.currentTimeMillis();
-    while (System.currentTimeMillis() < startTime + timeoutMillis) {
-      if (api.node(auth.node).task(upid).status().getStatus() == Task.Status.EStatus.STOPPED) {
-        return;
+    try {
+      AsyncUtils.get(watchTask(upid, timeoutMillis));
+    } catch (IOException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        throw new IOException("proxmox failed within timeout");
+      }
+      throw e;
+    }
+  }
+
+  private CompletableFuture<Void> watchTask(String upid, long timeoutMillis) {
+    return tasks.watch(upid).orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** How machines are placed across cluster nodes. */
+  public enum Placement {
+    /** Place each machine on the node with the most free memory, spreading load and clone I/O. */
+    SPREAD,
+    /** Place each machine on the fullest node it fits on, leaving other nodes free. */
+    PACK,
+  }
+
+  /** How one node of a build uses the layer cache. */
+  private static class LayerPlan {
+    private Integer sourceId;
+    private String sourceKey;
+    private final Set<Template.SetupStage> skipped =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Template.SetupStage captureAfter;
+    private String captureKey;
+
+    /** A plan for a node that keeps its setup from before an update, so runs none of it. */
+    private static LayerPlan skipping(List<Template.SetupStage> stages) {
+      LayerPlan plan = new LayerPlan();
+      plan.skipped.addAll(stages);
+      return plan;
+    }
+  }
+
+  /** The parts of a Template that decide how its VM is cloned and configured. */
+  private static class Shape {
+    private final Distribution dist;
+    private final int cores;
+    private final int memoryMb;
+    private final int interfaces;
+
+    private Shape(Distribution dist, int cores, int memoryMb, int interfaces) {
+      this.dist = dist;
+      this.cores = cores;
+      this.memoryMb = memoryMb;
+      this.interfaces = interfaces;
+    }
+
+    private static Shape of(Template template) {
+      return new Shape(
+          template.dist,
+          template.getCoreCount(),
+          template.getMemoryMb(),
+          template.getInterfaces());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Shape)) {
+        return false;
       }
+      Shape that = (Shape) o;
+      return dist == that.dist
+          && cores == that.cores
+          && memoryMb == that.memoryMb
+          && interfaces == that.interfaces;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(dist, cores, memoryMb, interfaces);
+    }
+  }
 
+  /**
+   * Machines of one shape, cloned, booted and reachable over ssh ahead of time. A failed refill is
+   * not retried until the next machine is taken, so a broken template does not loop.
+   */
+  private class WarmPool {
+    private final Shape shape;
+    private final int size;
+
+    private final Deque<Integer> ready = new ArrayDeque<>();
+    private int filling = 0;
+    private boolean closed = false;
+
+    private WarmPool(Shape shape, int size) {
+      this.shape = shape;
+      this.size = size;
+    }
+
+    private synchronized Integer take() {
+      Integer id = ready.poll();
+      if (id != null) {
+        refill();
+      }
+      return id;
+    }
+
+    private synchronized void refill() {
+      while (ready.size() + filling < size && !closed) {
+        filling++;
+        warmExecutor.submit(this::fill);
+      }
+    }
+
+    private void fill() {
+      Integer id = null;
       try {
-        Thread.sleep(RefreshInterval);
-      } catch (InterruptedException e) {
-        throw new IOException(e);
+        int newId = vmIds.reserve();
+        provisionVm(shape, "VirtualTests", newId, auth.node, config.templateMap.get(shape.dist));
+        id = newId;
+
+        Machine probe = new Machine(null, id, false);
+        try {
+          probe.start();
+          probe.awaitReady(config.readyTimeoutMillis);
+        } finally {
+          probe.sessions.close();
+        }
+
+        synchronized (this) {
+          filling--;
+          if (!closed) {
+            ready.add(id);
+            return;
+          }
+        }
+        reaper.reapVm(id);
+        return;
+      } catch (Exception e) {
+        // The machine exists once provisioned, so its id goes back only through the reaper.
+        if (id != null) {
+          reaper.reapVm(id);
+        }
+      }
+
+      synchronized (this) {
+        filling--;
       }
     }
 
-    throw new IOException("proxmox failed within timeout");
+    /** Stop refilling, so machines cloned from now on are reaped rather than kept ready. */
+    private synchronized void close() {
+      closed = true;
+    }
+
+    private void drain() throws IOException {
+      List<Integer> ids;
+      synchronized (this) {
+        ids = new ArrayList<>(ready);
+        ready.clear();
+      }
+
+      IOException failure = null;
+      for (int id : ids) {
+        try {
+          destroyVm(id);
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
   }
 
   public static class ProxmoxAuth {
@@ -337,6 +1358,41 @@ public class Proxmox implements Provider {
 
     private String internetBridge;
 
+    private int buildConcurrency = 8;
+    private int setupConcurrency = 16;
+
+    private int sshPort = 22;
+    private int sshMaxSessions = 2;
+    private int sshChannelsPerSession = 8;
+    private long sshIdleTimeoutMillis = 60000;
+    private long sshSpillThreshold = 16 * 1024 * 1024;
+
+    private final Map<Shape, Integer> warmPools = new HashMap<>();
+
+    private final Map<String, long[]> clusterNodes = new LinkedHashMap<>();
+    private final Map<String, Map<Distribution, Integer>> nodeTemplateMaps = new HashMap<>();
+    private Placement placement = Placement.SPREAD;
+
+    private long reaperTimeoutMillis = 300000;
+
+    private boolean resettable = false;
+    private long resetTimeoutMillis = 120000;
+
+    private boolean awaitReadyOnStart = false;
+    private long readyTimeoutMillis = 120000;
+
+    private Path layerDirectory;
+    private int maxLayers;
+    private long maxLayerAgeMillis;
+
+    private BuildListener buildListener = BuildListener.None;
+
+    private long taskInitialIntervalMillis = 50;
+    private long taskMaxIntervalMillis = 1000;
+
+    private int apiConcurrency = 8;
+    private long apiCacheTtlMillis = 2000;
+
     public ProxmoxConfig() {
       templateMap = new EnumMap<>(Distribution.class);
     }
@@ -351,6 +1407,31 @@ public class Proxmox implements Provider {
       return this;
     }
 
+    /**
+     * Register a template held on a particular cluster node. Templates registered without a node
+     * are on the node given in {@link ProxmoxAuth}.
+     */
+    public ProxmoxConfig registerTemplate(String node, Distribution dist, Integer id) {
+      nodeTemplateMaps.computeIfAbsent(node, k -> new EnumMap<>(Distribution.class)).put(dist, id);
+      return this;
+    }
+
+    /**
+     * Allow machines to be placed on a cluster node, with the cores and memory this provider may
+     * commit there. Once any node is registered, only registered nodes are used, so register the
+     * node given in {@link ProxmoxAuth} too if it should take machines. Management and internet
+     * bridges must exist under the same names on every registered node.
+     */
+    public ProxmoxConfig registerClusterNode(String node, int cores, long memoryMb) {
+      clusterNodes.put(node, new long[] {cores, memoryMb});
+      return this;
+    }
+
+    public ProxmoxConfig setPlacement(Placement placement) {
+      this.placement = placement;
+      return this;
+    }
+
     public ProxmoxConfig setManagementBridge(String managementBridge) {
       this.managementBridge = managementBridge;
       return this;
@@ -375,74 +1456,590 @@ public class Proxmox implements Provider {
       this.managementNetmask = managementNetmask;
       return this;
     }
+
+    /** Set the maximum number of machines cloned and configured at once by a single build. */
+    public ProxmoxConfig setBuildConcurrency(int buildConcurrency) {
+      if (buildConcurrency < 1) {
+        throw new IllegalArgumentException("build concurrency must be at least 1");
+      }
+      this.buildConcurrency = buildConcurrency;
+      return this;
+    }
+
+    /** Set the maximum number of setup stages running at once across all nodes. */
+    public ProxmoxConfig setSetupConcurrency(int setupConcurrency) {
+      if (setupConcurrency < 1) {
+        throw new IllegalArgumentException("setup concurrency must be at least 1");
+      }
+      this.setupConcurrency = setupConcurrency;
+      return this;
+    }
+
+    /** Set the port machines' ssh servers listen on. */
+    public ProxmoxConfig setSshPort(int sshPort) {
+      this.sshPort = sshPort;
+      return this;
+    }
+
+    /**
+     * Set the limits of each machine's ssh session pool. Channels per session should stay within
+     * the guest sshd's MaxSessions, which defaults to 10.
+     */
+    public ProxmoxConfig setSshPool(
+        int maxSessions, int channelsPerSession, long idleTimeoutMillis) {
+      if (maxSessions < 1 || channelsPerSession < 1) {
+        throw new IllegalArgumentException("ssh pool must allow at least one channel");
+      }
+      this.sshMaxSessions = maxSessions;
+      this.sshChannelsPerSession = channelsPerSession;
+      this.sshIdleTimeoutMillis = idleTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Keep {@code size} machines of the given shape cloned and booted ahead of time. A build takes
+     * a warm machine for any template of a matching shape, falling back to cloning when the pool is
+     * empty, and the pool refills in the background. Warm machines are already running, so the
+     * first {@link Node#start()} of a node built from one does nothing.
+     */
+    public ProxmoxConfig registerWarmPool(
+        Distribution dist, int coreCount, int memoryMb, int interfaces, int size) {
+      warmPools.put(new Shape(dist, coreCount, memoryMb, interfaces), size);
+      return this;
+    }
+
+    /** Set how long closing the provider waits for released environments to be torn down. */
+    public ProxmoxConfig setReaperTimeoutMillis(long reaperTimeoutMillis) {
+      this.reaperTimeoutMillis = reaperTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Take an image of every node once setup has finished, so that {@link Environment#reset()} can
+     * restore it. This costs a clone of each node per build, and the disk space to hold it. Only
+     * the disk is imaged, so anything setup left running must be started again by the VM's boot.
+     */
+    public ProxmoxConfig setResettable(boolean resettable) {
+      this.resettable = resettable;
+      return this;
+    }
+
+    /** Set how long a reset waits for a node to become reachable over ssh again. */
+    public ProxmoxConfig setResetTimeoutMillis(long resetTimeoutMillis) {
+      this.resetTimeoutMillis = resetTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Make {@link Node#start()} return only once the machine is ready, see {@link
+     * Machine#awaitReady(long)}, rather than once Proxmox has started the VM.
+     */
+    public ProxmoxConfig setAwaitReadyOnStart(boolean awaitReadyOnStart) {
+      this.awaitReadyOnStart = awaitReadyOnStart;
+      return this;
+    }
+
+    /** Set how long starting a machine, or filling a warm pool, waits for it to become ready. */
+    public ProxmoxConfig setReadyTimeoutMillis(long readyTimeoutMillis) {
+      this.readyTimeoutMillis = readyTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Cache images of nodes after their leading cacheable setup stages, and build later nodes whose
+     * stages start the same way from the deepest matching image. The cache index is kept in the
+     * given directory; layers past the maximum age, or the oldest past the maximum count, are
+     * deleted as new layers are captured. See {@link Template.SetupStage#withCacheKey}.
+     */
+    public ProxmoxConfig setLayerCache(Path directory, int maxLayers, long maxAgeMillis) {
+      this.layerDirectory = directory;
+      this.maxLayers = maxLayers;
+      this.maxLayerAgeMillis = maxAgeMillis;
+      return this;
+    }
+
+    /**
+     * Set how often Proxmox tasks are checked: first after the initial interval, then at doubling
+     * intervals up to the maximum.
+     */
+    public ProxmoxConfig setTaskPolling(long initialIntervalMillis, long maxIntervalMillis) {
+      if (initialIntervalMillis < 1 || maxIntervalMillis < initialIntervalMillis) {
+        throw new IllegalArgumentException("invalid task polling intervals");
+      }
+      this.taskInitialIntervalMillis = initialIntervalMillis;
+      this.taskMaxIntervalMillis = maxIntervalMillis;
+      return this;
+    }
+
+    /**
+     * Limit how many API calls this provider has in flight at once, across all of its builds. Calls
+     * past the limit wait their turn.
+     */
+    public ProxmoxConfig setApiConcurrency(int apiConcurrency) {
+      if (apiConcurrency < 1) {
+        throw new IllegalArgumentException("api concurrency must be at least one");
+      }
+      this.apiConcurrency = apiConcurrency;
+      return this;
+    }
+
+    /**
+     * Set how long VM and network listings are reused for. The provider's own changes are always
+     * seen at once, so this only delays noticing VMs and bridges made by others; 0 disables it.
+     */
+    public ProxmoxConfig setApiCacheTtlMillis(long apiCacheTtlMillis) {
+      this.apiCacheTtlMillis = apiCacheTtlMillis;
+      return this;
+    }
+
+    /**
+     * Report timed spans for API calls, clones, boots, ssh sessions and commands, and setup
+     * stages. Combine listeners with {@link BuildListener#all}.
+     */
+    public ProxmoxConfig setBuildListener(BuildListener buildListener) {
+      this.buildListener = buildListener;
+      return this;
+    }
+
+    /** Set the size past which buffered ssh output is moved from memory to a temporary file. */
+    public ProxmoxConfig setSshSpillThreshold(long sshSpillThreshold) {
+      this.sshSpillThreshold = sshSpillThreshold;
+      return this;
+    }
   }
 
   public class Machine extends Node {
     private final int id;
+    private final String host;
+    private final SshUtils.SessionPool sessions;
 
-    private Machine(Template template, int id) {
+    // Machines taken from a warm pool are already running, so their first start is skipped.
+    private volatile boolean running;
+
+    private Integer resetImage;
+
+    // Set once a failed reset has deleted the VM and handed its id on, leaving nothing to close.
+    private volatile boolean lost = false;
+
+    private Machine(Template template, int id, boolean running) {
       super(template);
       this.id = id;
+      this.host = hostOf(id);
+      this.running = running;
+
+      sessions =
+          new SshUtils.SessionPool(
+              () -> {
+                Session session =
+                    ssh.getSession(
+                        "root", getManagementAddress().getHostAddress(), config.sshPort);
+                session.setConfig("StrictHostKeyChecking", "no");
+                return session;
+              },
+              config.sshMaxSessions,
+              config.sshChannelsPerSession,
+              config.sshIdleTimeoutMillis);
+      sessions.setListener(config.buildListener, Map.of("vmid", Integer.toString(id)));
     }
 
     @Override
     public void close() throws IOException {
-      QemuStatus status = api.node(auth.node).qemu(id).status().get();
-      if (status.getStatus() == QemuStatus.Status.RUNNING) {
-        String stopJob = api.node(auth.node).qemu(id).status().stop(new QemuStatus.Stop());
-        awaitTask(stopJob);
+      sessions.close();
+      if (!lost) {
+        destroyVm(id);
+      }
+      releaseCapacity();
+
+      if (resetImage != null) {
+        destroyVm(resetImage);
+        resetImage = null;
+      }
+    }
+
+    @Override
+    public void release() {
+      sessions.close();
+      if (!lost) {
+        reaper.reapVm(id);
+      }
+      releaseCapacity();
+
+      if (resetImage != null) {
+        reaper.reapVm(resetImage);
+        resetImage = null;
+      }
+    }
+
+    private Proxmox provider() {
+      return Proxmox.this;
+    }
+
+    /**
+     * Apply the resources of the machine's new template, which it already holds, in place of those
+     * of its previous one. Cores and memory only change across a reboot, so a running machine is
+     * shut down and started again, and waited for. A reset image no longer matches, so is dropped.
+     */
+    private void reconfigure(Template from) throws IOException {
+      Template to = getTemplate();
+      tracer.call(
+          "reconfigure",
+          () -> {
+            boolean wasRunning =
+                client.getVmStatus(host, id).getStatus() == QemuStatus.Status.RUNNING;
+            if (wasRunning) {
+              running = false;
+              sessions.close();
+              awaitTask(shutdownVm());
+            }
+
+            QemuConfig.SyncUpdate newConfig =
+                new QemuConfig.SyncUpdate()
+                    .setCores(to.getCoreCount())
+                    .setMemory(to.getMemoryMb())
+                    .setNet(new HashMap<>())
+                    .setIpconfig(new HashMap<>());
+            for (int i = from.getInterfaces(); i < to.getInterfaces(); i++) {
+              putInterface(newConfig, id, i);
+            }
+            client.configureVm(host, id, newConfig);
+
+            if (resetImage != null) {
+              destroyVm(resetImage);
+              resetImage = null;
+            }
+
+            if (wasRunning) {
+              awaitTask(startVm());
+              awaitReady(config.readyTimeoutMillis);
+            }
+            return null;
+          },
+          "vmid",
+          id);
+    }
+
+    private void releaseCapacity() {
+      if (getTemplate() != null) {
+        placement.release(host, getTemplate().getCoreCount(), getTemplate().getMemoryMb());
+      }
+    }
+
+    private void captureResetImage() throws IOException {
+      mustSsh("sync");
+
+      int imageId = vmIds.reserve();
+      copyVm(
+          host,
+          id,
+          imageId,
+          "VirtualTestsReset",
+          "virtualtests reset image of " + id,
+          LayerCaptureTimeout);
+      resetImage = imageId;
+    }
+
+    /**
+     * Roll the machine back to the image taken once setup finished, keeping its id and so its
+     * management address, then boot it and wait for ssh. The image is cloned aside first, so a
+     * reset that fails before the machine's VM is deleted leaves the machine as it was.
+     *
+     * <p>The machine's VM is then deleted and cloned back from that copy under the same id. The
+     * clone keeps the configuration the machine had when the image was taken, including the bridges
+     * its interfaces were attached to, though Proxmox gives every clone new MAC addresses. Only the
+     * disk is imaged, so processes started during setup are not restored.
+     */
+    @Override
+    public void reset() throws IOException {
+      if (resetImage == null) {
+        throw new IllegalStateException(
+            "machine has no reset image, see ProxmoxConfig.setResettable");
       }
-      String deleteJob = api.node(auth.node).qemu(id).delete();
-      awaitTask(deleteJob);
+
+      tracer.call(
+          "reset",
+          () -> {
+            int stagingId = vmIds.reserve();
+            copyVm(
+                host,
+                resetImage,
+                stagingId,
+                "VirtualTestsReset",
+                "virtualtests reset of " + id,
+                LayerCaptureTimeout);
+
+            try {
+              running = false;
+              sessions.close();
+              deleteVm(id);
+
+              try {
+                copyVm(
+                    host,
+                    stagingId,
+                    id,
+                    getTemplate().getName(),
+                    "created by virtualtests",
+                    LayerCaptureTimeout);
+              } catch (IOException | RuntimeException e) {
+                lost = true;
+                throw e;
+              }
+            } finally {
+              reaper.reapVm(stagingId);
+            }
+
+            start();
+            awaitReady(config.resetTimeoutMillis);
+            return null;
+          },
+          "vmid",
+          id);
     }
 
     @Override
     public void start() throws IOException {
-      String startJob = api.node(auth.node).qemu(id).status().start(new QemuStatus.Start());
-      awaitTask(startJob);
+      if (running) {
+        running = false;
+        return;
+      }
+
+      tracer.call(
+          "boot",
+          () -> {
+            awaitTask(startVm());
+            return null;
+          },
+          "vmid",
+          id);
+      if (config.awaitReadyOnStart) {
+        awaitReady(config.readyTimeoutMillis);
+      }
+    }
+
+    @Override
+    public CompletableFuture<Void> startAsync() {
+      if (running) {
+        running = false;
+        return CompletableFuture.completedFuture(null);
+      }
+
+      CompletableFuture<Void> booted =
+          tracer.track(
+              tracer.span("boot", "vmid", id),
+              AsyncUtils.flatten(AsyncUtils.supply(() -> watchTask(startVm(), 30000))));
+      return config.awaitReadyOnStart
+          ? booted.thenCompose(v -> awaitReadyAsync(config.readyTimeoutMillis))
+          : booted;
+    }
+
+    /**
+     * Wait until the machine accepts ssh connections and cloud-init, if the guest runs it, has
+     * finished, so that setup does not race the first boot's package and user configuration.
+     * Connections are probed cheaply before ssh is attempted, and attempts back off with jitter.
+     */
+    @Override
+    public void awaitReady(long timeoutMillis) throws IOException {
+      tracer.call(
+          "ready",
+          () -> {
+            Backoff backoff =
+                new Backoff(ReadyInitialIntervalMillis, ReadyMaxIntervalMillis, timeoutMillis);
+            do {
+              try (SSHResult r = ssh(BootFinished, Math.max(backoff.remainingMillis(), 1))) {
+                if (r.getReturnCode() == 0) {
+                  return null;
+                }
+              }
+            } while (backoff.sleep());
+            throw new IOException(
+                String.format("machine %d was not ready within %dms", id, timeoutMillis));
+          },
+          "vmid",
+          id);
+    }
+
+    @Override
+    public CompletableFuture<Void> stopAsync() {
+      running = false;
+      sessions.close();
+      return tracer.track(
+          tracer.span("shutdown", "vmid", id),
+          AsyncUtils.flatten(AsyncUtils.supply(() -> watchTask(shutdownVm(), 30000))));
     }
 
     @Override
     public void stop() throws IOException {
-      String stopJob = api.node(auth.node).qemu(id).status().shutdown(new QemuStatus.Shutdown());
-      awaitTask(stopJob);
+      running = false;
+      sessions.close();
+
+      tracer.call(
+          "shutdown",
+          () -> {
+            awaitTask(shutdownVm());
+            return null;
+          },
+          "vmid",
+          id);
+    }
+
+    private String startVm() throws IOException {
+      return client.startVm(host, id);
+    }
+
+    private String shutdownVm() throws IOException {
+      return client.shutdownVm(host, id);
     }
 
     @Override
     public SSHResult ssh(String command, long connectionTimeoutMillis) throws IOException {
-      try {
-        Session session = ssh.getSession("root", getManagementAddress().getHostAddress());
-        session.setConfig("StrictHostKeyChecking", "no");
+      return AsyncUtils.get(buffered(command, null, connectionTimeoutMillis));
+    }
+
+    @Override
+    public SSHResult ssh(String command, InputStream stdin, long connectionTimeoutMillis)
+        throws IOException {
+      return AsyncUtils.get(buffered(command, stdin, connectionTimeoutMillis));
+    }
 
-        try (SshUtils.ManagedSession s =
-            SshUtils.getManagedSession(session, connectionTimeoutMillis)) {
-          try (SshUtils.ManagedChannel<ChannelExec> mc = s.getChannelExec()) {
-            ChannelExec c = mc.getChannel();
+    @Override
+    public CompletableFuture<SSHResult> sshAsync(String command, long connectionTimeoutMillis) {
+      return AsyncUtils.flatten(
+          AsyncUtils.supply(() -> buffered(command, null, connectionTimeoutMillis)));
+    }
 
-            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    @Override
+    public CompletableFuture<Integer> sshAsync(
+        String command, OutputStream stdout, OutputStream stderr, long connectionTimeoutMillis) {
+      return AsyncUtils.flatten(
+          AsyncUtils.supply(() -> exec(command, null, stdout, stderr, connectionTimeoutMillis)));
+    }
 
-            c.setOutputStream(stdout);
-            c.setErrStream(stderr);
+    /** Upload over sftp, on a channel of the machine's session pool. */
+    @Override
+    public void upload(InputStream in, String remotePath) throws IOException {
+      sftp(
+          "sftp.upload",
+          remotePath,
+          c -> c.put(in, remotePath, ChannelSftp.OVERWRITE));
+    }
 
-            c.setCommand(command);
+    /** Download over sftp, on a channel of the machine's session pool. */
+    @Override
+    public void download(String remotePath, OutputStream out) throws IOException {
+      sftp("sftp.download", remotePath, c -> c.get(remotePath, out));
+      out.flush();
+    }
 
-            c.connect();
+    private void sftp(String span, String remotePath, SftpAction action) throws IOException {
+      tracer.call(
+          span,
+          () -> {
+            try (SshUtils.ManagedChannel<ChannelSftp> mc = sessions.getChannelSftp(30000)) {
+              ChannelSftp c = mc.getChannel();
+              mc.connect();
+              action.run(c);
+            } catch (JSchException | SftpException e) {
+              throw new IOException(String.format("sftp transfer of %s failed", remotePath), e);
+            }
+            return null;
+          },
+          "vmid",
+          id,
+          "path",
+          remotePath);
+    }
 
-            while (c.isConnected()) {
+    private CompletableFuture<SSHResult> buffered(
+        String command, InputStream stdin, long connectionTimeoutMillis) throws IOException {
+      SpillOutputStream stdout = new SpillOutputStream(config.sshSpillThreshold);
+      SpillOutputStream stderr = new SpillOutputStream(config.sshSpillThreshold);
+
+      CompletableFuture<Integer> status =
+          exec(command, stdin, stdout, stderr, connectionTimeoutMillis);
+      CompletableFuture<SSHResult> result =
+          status.thenApply(
+              code -> {
+                try {
+                  stdout.close();
+                  stderr.close();
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+                return new SSHResult(code, stdout, stderr);
+              });
+      result.whenComplete(
+          (r, t) -> {
+            if (t != null) {
+              status.cancel(true);
               try {
-                Thread.sleep(100);
-              } catch (InterruptedException e) {
-                throw new IOException(e);
+                stdout.delete();
+                stderr.delete();
+              } catch (IOException ignored) {
               }
             }
+          });
+      return result;
+    }
 
-            return new SSHResult(c.getExitStatus(), stdout.toByteArray(), stderr.toByteArray());
-          }
+    /**
+     * Start a command, returning a future of its exit status that completes when the channel
+     * closes. Only connecting blocks; completing or cancelling the future hands the channel back to
+     * the pool.
+     */
+    private CompletableFuture<Integer> exec(
+        String command,
+        InputStream stdin,
+        OutputStream stdout,
+        OutputStream stderr,
+        long connectionTimeoutMillis)
+        throws IOException {
+      BuildListener.Span span = tracer.span("ssh.exec", "vmid", id);
+      SshUtils.ManagedChannel<ChannelExec> mc;
+      try {
+        mc = sessions.getChannelExec(connectionTimeoutMillis);
+      } catch (IOException | RuntimeException e) {
+        span.fail(e);
+        span.close();
+        throw e;
+      }
+
+      try {
+        ChannelExec c = mc.getChannel();
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        c.setOutputStream(stdout, true);
+        c.setErrStream(SshUtils.onClose(stderr, () -> closed.complete(null)));
+        if (stdin != null) {
+          // JSch copies the stream from its own thread, sending end of file once it is exhausted.
+          c.setInputStream(stdin, true);
         }
 
+        c.setCommand(command);
+
+        mc.connect();
+
+        CompletableFuture<Integer> result =
+            closed.thenApply(
+                v -> {
+                  try {
+                    stdout.flush();
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                  return c.getExitStatus();
+                });
+        result.whenComplete((r, t) -> mc.close());
+        return tracer.track(span, result);
       } catch (JSchException e) {
+        mc.close();
+        span.fail(e);
+        span.close();
         throw new IOException(e);
+      } catch (RuntimeException e) {
+        mc.close();
+        span.fail(e);
+        span.close();
+        throw e;
       }
     }
 
@@ -451,6 +2048,14 @@ public class Proxmox implements Provider {
     }
   }
 
+  private interface SftpAction {
+    void run(ChannelSftp channel) throws SftpException;
+  }
+
+  /**
+   * A Linux bridge on the host. Closing a bridge only stages its removal; {@link #closeAll()}
+   * applies every staged removal with a single network reload.
+   */
   public class LinuxBridge extends Bridge {
     private final String bridge;
 
@@ -460,12 +2065,17 @@ public class Proxmox implements Provider {
 
     @Override
     public void close() throws IOException {
-      api.node(auth.node).network(bridge).delete();
+      deleteBridge(bridge);
     }
 
     @Override
     public void closeAll() throws IOException {
-      api.node(auth.node).networks().put();
+      awaitTask(reloadNetworkAsync());
+    }
+
+    @Override
+    public void release() {
+      reaper.reapBridge(bridge);
     }
   }
 }
@@ -0,0 +1,283 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import uk.co.hillion.jake.proxmox.Network;
+import uk.co.hillion.jake.proxmox.ProxmoxAPI;
+import uk.co.hillion.jake.proxmox.Qemu;
+import uk.co.hillion.jake.proxmox.QemuConfig;
+import uk.co.hillion.jake.proxmox.QemuStatus;
+import uk.co.hillion.jake.proxmox.Task;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The Proxmox API calls the provider makes, each in its own span, between the provider and the API
+ * client.
+ *
+ * <p>At most a fixed number of calls are in flight at once, however many builds are running, to
+ * keep a busy cluster's API responsive. Identical reads already in flight are joined rather than
+ * repeated, and VM and network listings are cached for a short time. Each write through the client
+ * invalidates the listings it changes, and a read that overlaps such a write is never cached, so
+ * the provider always sees its own writes. Changes made by anything else are seen once the cache
+ * expires.
+ */
+class ProxmoxClient {
+  private final ProxmoxAPI api;
+  private final Tracer tracer;
+  private final Semaphore permits;
+  private final long inventoryTtlMillis;
+
+  private final Map<String, CompletableFuture<Object>> inflight = new HashMap<>();
+  private final Map<String, Cached> cache = new HashMap<>();
+  private final Map<String, Long> generations = new HashMap<>();
+
+  ProxmoxClient(ProxmoxAPI api, Tracer tracer, int maxConcurrency, long inventoryTtlMillis) {
+    this.api = api;
+    this.tracer = tracer;
+    this.permits = new Semaphore(maxConcurrency, true);
+    this.inventoryTtlMillis = inventoryTtlMillis;
+  }
+
+  Qemu[] listVms(String node) throws IOException {
+    return read(
+        vmsKey(node),
+        inventoryTtlMillis,
+        "api.qemu.list",
+        () -> api.node(node).qemus().get(),
+        "host",
+        node);
+  }
+
+  QemuStatus getVmStatus(String node, int id) throws IOException {
+    return read(
+        "qemu.status:" + node + ":" + id,
+        0,
+        "api.qemu.status",
+        () -> api.node(node).qemu(id).status().get(),
+        "host",
+        node,
+        "vmid",
+        id);
+  }
+
+  String cloneVm(String node, int id, Qemu.Clone clone) throws IOException {
+    return write(
+        List.of(vmsKey(node)),
+        "api.qemu.clone",
+        () -> api.node(node).qemu(id).clone(clone),
+        "host",
+        node,
+        "vmid",
+        id);
+  }
+
+  void configureVm(String node, int id, QemuConfig.SyncUpdate update) throws IOException {
+    write(
+        List.of(),
+        "api.qemu.config",
+        () -> {
+          api.node(node).qemu(id).config().put(update);
+          return null;
+        },
+        "host",
+        node,
+        "vmid",
+        id);
+  }
+
+  String startVm(String node, int id) throws IOException {
+    return write(
+        List.of(),
+        "api.qemu.start",
+        () -> api.node(node).qemu(id).status().start(new QemuStatus.Start()),
+        "host",
+        node,
+        "vmid",
+        id);
+  }
+
+  String stopVm(String node, int id) throws IOException {
+    return write(
+        List.of(),
+        "api.qemu.stop",
+        () -> api.node(node).qemu(id).status().stop(new QemuStatus.Stop()),
+        "host",
+        node,
+        "vmid",
+        id);
+  }
+
+  String shutdownVm(String node, int id) throws IOException {
+    return write(
+        List.of(),
+        "api.qemu.shutdown",
+        () -> api.node(node).qemu(id).status().shutdown(new QemuStatus.Shutdown()),
+        "host",
+        node,
+        "vmid",
+        id);
+  }
+
+  String deleteVm(String node, int id) throws IOException {
+    return write(
+        List.of(vmsKey(node)),
+        "api.qemu.delete",
+        () -> api.node(node).qemu(id).delete(),
+        "host",
+        node,
+        "vmid",
+        id);
+  }
+
+  Network[] listNetworks(String node) throws IOException {
+    return read(
+        networksKey(node),
+        inventoryTtlMillis,
+        "api.network.list",
+        () -> api.node(node).networks().get(),
+        "host",
+        node);
+  }
+
+  void createNetwork(String node, Network.Create create) throws IOException {
+    write(
+        List.of(networksKey(node)),
+        "api.network.create",
+        () -> {
+          api.node(node).networks().post(create);
+          return null;
+        },
+        "host",
+        node);
+  }
+
+  void deleteNetwork(String node, String name) throws IOException {
+    write(
+        List.of(networksKey(node)),
+        "api.network.delete",
+        () -> {
+          api.node(node).network(name).delete();
+          return null;
+        },
+        "host",
+        node,
+        "bridge",
+        name);
+  }
+
+  String reloadNetworks(String node) throws IOException {
+    return write(
+        List.of(), "api.network.reload", () -> api.node(node).networks().put(), "host", node);
+  }
+
+  Task.Status.EStatus getTaskStatus(String node, String upid) throws IOException {
+    return read(
+        "task.status:" + upid,
+        0,
+        "api.task.status",
+        () -> api.node(node).task(upid).status().getStatus(),
+        "upid",
+        upid);
+  }
+
+  private static String vmsKey(String node) {
+    return "qemu.list:" + node;
+  }
+
+  private static String networksKey(String node) {
+    return "network.list:" + node;
+  }
+
+  /**
+   * Read through the cache, joining an identical read in flight if there is one, and caching the
+   * result for the given time if no write invalidated it meanwhile.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T read(String key, long ttlMillis, String span, Tracer.Body<T> body, Object... tags)
+      throws IOException {
+    CompletableFuture<Object> future;
+    CompletableFuture<Object> joined;
+    long generation;
+    synchronized (this) {
+      Cached cached = cache.get(key);
+      if (cached != null && cached.expires > System.currentTimeMillis()) {
+        return (T) cached.value;
+      }
+
+      joined = inflight.get(key);
+      future = new CompletableFuture<>();
+      if (joined == null) {
+        inflight.put(key, future);
+      }
+      generation = generations.getOrDefault(key, 0L);
+    }
+
+    if (joined != null) {
+      // Wait on a copy, so that an interrupted joiner cancels only its own wait.
+      return (T) AsyncUtils.get(joined.copy());
+    }
+
+    try {
+      T value = call(span, body, tags);
+      synchronized (this) {
+        inflight.remove(key, future);
+        if (ttlMillis > 0 && generations.getOrDefault(key, 0L) == generation) {
+          cache.put(key, new Cached(value, System.currentTimeMillis() + ttlMillis));
+        }
+      }
+      future.complete(value);
+      return value;
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        inflight.remove(key, future);
+      }
+      future.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /** Write, then invalidate the listings the write may have changed, whether or not it failed. */
+  private <T> T write(List<String> invalidates, String span, Tracer.Body<T> body, Object... tags)
+      throws IOException {
+    try {
+      return call(span, body, tags);
+    } finally {
+      synchronized (this) {
+        for (String key : invalidates) {
+          cache.remove(key);
+          inflight.remove(key);
+          generations.merge(key, 1L, Long::sum);
+        }
+      }
+    }
+  }
+
+  private <T> T call(String span, Tracer.Body<T> body, Object... tags) throws IOException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+
+    try {
+      return tracer.call(span, body, tags);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private static class Cached {
+    private final Object value;
+    private final long expires;
+
+    private Cached(Object value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+}
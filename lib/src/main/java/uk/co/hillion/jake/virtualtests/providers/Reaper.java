@@ -0,0 +1,181 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tears down released resources in the background. Each round deletes every due VM in parallel,
+ * then every due bridge followed by a single network reload. Failed deletions are retried with
+ * exponential backoff until they run out of attempts, after which they are abandoned.
+ */
+class Reaper {
+  private final Target target;
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+
+  private final List<Item> pending = new ArrayList<>();
+  private int inFlight = 0;
+  private Thread thread;
+
+  Reaper(Target target, int maxAttempts, long initialBackoffMillis) {
+    this.target = target;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+  }
+
+  void reapVm(int id) {
+    submit(new Item(id, null));
+  }
+
+  void reapBridge(String name) {
+    submit(new Item(null, name));
+  }
+
+  private synchronized void submit(Item item) {
+    pending.add(item);
+    if (thread == null) {
+      thread = AsyncUtils.threadFactory("virtualtests-reaper").newThread(this::run);
+      thread.start();
+    }
+    notifyAll();
+  }
+
+  /** Wait until everything released so far has been reaped or abandoned. */
+  synchronized void flush(long timeoutMillis) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!pending.isEmpty() || inFlight > 0) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new IOException("reaper failed to finish within timeout");
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+    }
+  }
+
+  private void run() {
+    while (true) {
+      List<Item> due;
+      try {
+        due = takeDue();
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      List<Item> vms = new ArrayList<>();
+      List<Item> bridges = new ArrayList<>();
+      for (Item item : due) {
+        (item.vmId != null ? vms : bridges).add(item);
+      }
+
+      List<Item> failed = new ArrayList<>();
+
+      List<CompletableFuture<Void>> deletes = new ArrayList<>(vms.size());
+      for (Item item : vms) {
+        deletes.add(
+            AsyncUtils.supply(
+                () -> {
+                  target.deleteVm(item.vmId);
+                  return null;
+                }));
+      }
+      for (int i = 0; i < vms.size(); i++) {
+        try {
+          AsyncUtils.get(deletes.get(i));
+        } catch (IOException | RuntimeException e) {
+          failed.add(vms.get(i));
+        }
+      }
+
+      if (!bridges.isEmpty()) {
+        List<Item> deleted = new ArrayList<>(bridges.size());
+        for (Item item : bridges) {
+          try {
+            target.deleteBridge(item.bridge);
+            deleted.add(item);
+          } catch (IOException | RuntimeException e) {
+            failed.add(item);
+          }
+        }
+
+        if (!deleted.isEmpty()) {
+          try {
+            target.reloadNetwork();
+          } catch (IOException | RuntimeException e) {
+            // The deletions are staged but not applied; retry them so the reload is retried too.
+            failed.addAll(deleted);
+          }
+        }
+      }
+
+      finish(due.size(), failed);
+    }
+  }
+
+  private synchronized List<Item> takeDue() throws InterruptedException {
+    while (true) {
+      long now = System.currentTimeMillis();
+      long nextDue = Long.MAX_VALUE;
+
+      List<Item> due = new ArrayList<>();
+      Iterator<Item> it = pending.iterator();
+      while (it.hasNext()) {
+        Item item = it.next();
+        if (item.notBefore <= now) {
+          due.add(item);
+          it.remove();
+        } else {
+          nextDue = Math.min(nextDue, item.notBefore);
+        }
+      }
+
+      if (!due.isEmpty()) {
+        inFlight += due.size();
+        return due;
+      }
+
+      wait(nextDue == Long.MAX_VALUE ? 0 : nextDue - now);
+    }
+  }
+
+  private synchronized void finish(int count, List<Item> failed) {
+    inFlight -= count;
+    for (Item item : failed) {
+      item.attempts++;
+      if (item.attempts < maxAttempts) {
+        item.notBefore =
+            System.currentTimeMillis() + (initialBackoffMillis << (item.attempts - 1));
+        pending.add(item);
+      }
+    }
+    notifyAll();
+  }
+
+  interface Target {
+    void deleteVm(int id) throws IOException;
+
+    void deleteBridge(String name) throws IOException;
+
+    void reloadNetwork() throws IOException;
+  }
+
+  private static class Item {
+    private final Integer vmId;
+    private final String bridge;
+
+    private int attempts = 0;
+    private long notBefore = 0;
+
+    private Item(Integer vmId, String bridge) {
+      this.vmId = vmId;
+      this.bridge = bridge;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Schedules the setup stages of a Blueprint's templates as a dependency graph.
+ *
+ * <p>Each stage depends on the stage before it on the same node. Barrier stages additionally depend
+ * on every stage of a lower order, which is expressed through one join vertex per order so the graph
+ * stays linear in the number of stages. Stages with explicit dependencies depend on every instance
+ * of those stages instead. Ready stages are started longest remaining path first.
+ */
+public class SetupGraph {
+  private final List<Vertex> vertices;
+  private final List<List<Template.SetupStage>> stages;
+
+  private SetupGraph(List<Vertex> vertices, List<List<Template.SetupStage>> stages) {
+    this.vertices = vertices;
+    this.stages = stages;
+  }
+
+  public static SetupGraph create(Provider provider, List<Template> templates)
+      throws ImpossibleBlueprintException {
+    List<Vertex> vertices = new ArrayList<>();
+    Map<Template.SetupStage, List<Vertex>> instances = new IdentityHashMap<>();
+    TreeMap<Integer, List<Vertex>> byOrder = new TreeMap<>();
+    List<List<Template.SetupStage>> nodeStages = new ArrayList<>(templates.size());
+
+    for (int node = 0; node < templates.size(); node++) {
+      List<Template.SetupStage> stages = new ArrayList<>(templates.get(node).getSetup());
+      stages.sort(null);
+      nodeStages.add(List.copyOf(stages));
+
+      Vertex previous = null;
+      for (Template.SetupStage stage : stages) {
+        Vertex v = new Vertex(vertices.size(), node, stage);
+        vertices.add(v);
+        instances.computeIfAbsent(stage, k -> new ArrayList<>()).add(v);
+        byOrder.computeIfAbsent(stage.getOrder(), k -> new ArrayList<>()).add(v);
+
+        if (previous != null) {
+          previous.addDependent(v);
+        }
+        previous = v;
+      }
+    }
+
+    // Join vertex for each order, complete once every stage of that order or lower is complete.
+    Vertex lastJoin = null;
+    for (List<Vertex> group : byOrder.values()) {
+      Vertex join = new Vertex(vertices.size(), -1, null);
+      vertices.add(join);
+
+      for (Vertex v : group) {
+        if (v.stage.isBarrier()) {
+          if (lastJoin != null) {
+            lastJoin.addDependent(v);
+          }
+        } else {
+          for (Template.SetupStage dependency : v.stage.getDependencies()) {
+            List<Vertex> targets = instances.get(dependency);
+            if (targets == null) {
+              throw new ImpossibleBlueprintException(
+                  provider, "setup stage depends on a stage that no node in the blueprint runs");
+            }
+            for (Vertex target : targets) {
+              target.addDependent(v);
+            }
+          }
+        }
+        v.addDependent(join);
+      }
+      if (lastJoin != null) {
+        lastJoin.addDependent(join);
+      }
+      lastJoin = join;
+    }
+
+    prioritise(provider, vertices);
+    return new SetupGraph(vertices, nodeStages);
+  }
+
+  /** Orders the graph topologically, failing on cycles, and sets each vertex's critical path. */
+  private static void prioritise(Provider provider, List<Vertex> vertices)
+      throws ImpossibleBlueprintException {
+    int[] pending = new int[vertices.size()];
+    for (Vertex v : vertices) {
+      pending[v.index] = v.dependencies;
+    }
+
+    Deque<Vertex> ready = new ArrayDeque<>();
+    for (Vertex v : vertices) {
+      if (pending[v.index] == 0) {
+        ready.add(v);
+      }
+    }
+
+    List<Vertex> order = new ArrayList<>(vertices.size());
+    while (!ready.isEmpty()) {
+      Vertex v = ready.remove();
+      order.add(v);
+      for (Vertex d : v.dependents) {
+        if (--pending[d.index] == 0) {
+          ready.add(d);
+        }
+      }
+    }
+
+    if (order.size() != vertices.size()) {
+      throw new ImpossibleBlueprintException(provider, "setup stage dependencies contain a cycle");
+    }
+
+    for (int i = order.size() - 1; i >= 0; i--) {
+      Vertex v = order.get(i);
+      long longest = 0;
+      for (Vertex d : v.dependents) {
+        longest = Math.max(longest, d.priority);
+      }
+      v.priority = longest + (v.stage == null ? 0 : 1);
+    }
+  }
+
+  /**
+   * The nodes outside those given with a stage that depends on a stage of one of them, directly,
+   * through the stages before it on its own node, or through a barrier.
+   */
+  public Set<Integer> getDependentNodes(Set<Integer> nodes) {
+    boolean[] seen = new boolean[vertices.size()];
+    Deque<Vertex> pending = new ArrayDeque<>();
+    for (Vertex v : vertices) {
+      if (nodes.contains(v.node)) {
+        seen[v.index] = true;
+        pending.add(v);
+      }
+    }
+
+    Set<Integer> dependent = new TreeSet<>();
+    while (!pending.isEmpty()) {
+      Vertex v = pending.remove();
+      if (v.stage != null && !nodes.contains(v.node)) {
+        dependent.add(v.node);
+      }
+      for (Vertex d : v.dependents) {
+        if (!seen[d.index]) {
+          seen[d.index] = true;
+          pending.add(d);
+        }
+      }
+    }
+    return dependent;
+  }
+
+  /** The stages of one node, in the order they run on that node. */
+  public List<Template.SetupStage> getStages(int node) {
+    return stages.get(node);
+  }
+
+  public int size() {
+    return (int) vertices.stream().filter(v -> v.stage != null).count();
+  }
+
+  /**
+   * Run every stage, starting each as soon as its dependencies are complete.
+   *
+   * <p>At most {@code parallelism} stages are handed to the executor at once, so that the choice of
+   * which ready stage runs next stays with the scheduler. On failure no further stages are started,
+   * running stages are waited for, and the first failure is thrown.
+   */
+  public void run(ExecutorService executor, int parallelism, StageRunner runner)
+      throws IOException {
+    int[] pending = new int[vertices.size()];
+    PriorityQueue<Vertex> ready =
+        new PriorityQueue<>(
+            Comparator.comparingLong((Vertex v) -> -v.priority).thenComparingInt(v -> v.index));
+    for (Vertex v : vertices) {
+      pending[v.index] = v.dependencies;
+      if (v.dependencies == 0) {
+        ready.add(v);
+      }
+    }
+
+    CompletionService<Vertex> completions = new ExecutorCompletionService<>(executor);
+    int running = 0;
+    int remaining = vertices.size();
+    IOException failure = null;
+
+    while (remaining > 0) {
+      while (failure == null && !ready.isEmpty()) {
+        Vertex v = ready.peek();
+        if (v.stage == null) {
+          // Joins have no work, so complete them inline.
+          ready.remove();
+          remaining--;
+          release(v, pending, ready);
+          continue;
+        }
+        if (running >= parallelism) {
+          break;
+        }
+
+        ready.remove();
+        running++;
+        completions.submit(
+            () -> {
+              runner.run(v.node, v.stage);
+              return v;
+            });
+      }
+
+      if (running == 0) {
+        break;
+      }
+
+      try {
+        Future<Vertex> done = completions.take();
+        running--;
+        remaining--;
+        release(done.get(), pending, ready);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure =
+              e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void release(Vertex v, int[] pending, PriorityQueue<Vertex> ready) {
+    for (Vertex d : v.dependents) {
+      if (--pending[d.index] == 0) {
+        ready.add(d);
+      }
+    }
+  }
+
+  public interface StageRunner {
+    void run(int node, Template.SetupStage stage) throws IOException;
+  }
+
+  private static class Vertex {
+    private final int index;
+    private final int node;
+    private final Template.SetupStage stage;
+
+    private final List<Vertex> dependents = new ArrayList<>();
+    private int dependencies;
+    private long priority;
+
+    private Vertex(int index, int node, Template.SetupStage stage) {
+      this.index = index;
+      this.node = node;
+      this.stage = stage;
+    }
+
+    private void addDependent(Vertex v) {
+      dependents.add(v);
+      v.dependencies++;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An output stream held in memory until it grows past a threshold, after which it is moved to, and
+ * continues in, a temporary file.
+ */
+public class SpillOutputStream extends OutputStream {
+  private final long threshold;
+
+  private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+  private Path file;
+  private OutputStream fileStream;
+  private long size = 0;
+
+  public SpillOutputStream(long threshold) {
+    this.threshold = threshold;
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    if (memory != null && size + len > threshold) {
+      spill();
+    }
+
+    if (memory != null) {
+      memory.write(b, off, len);
+    } else {
+      fileStream.write(b, off, len);
+    }
+    size += len;
+  }
+
+  private void spill() throws IOException {
+    file = Files.createTempFile("virtualtests-", ".out");
+    file.toFile().deleteOnExit();
+
+    fileStream = new BufferedOutputStream(Files.newOutputStream(file));
+    memory.writeTo(fileStream);
+    memory = null;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (fileStream != null) {
+      fileStream.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (fileStream != null) {
+      fileStream.close();
+    }
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized boolean isSpilled() {
+    return file != null;
+  }
+
+  /** Read the stream back from the start. The stream should be closed first. */
+  public synchronized InputStream openInputStream() throws IOException {
+    if (memory != null) {
+      return new ByteArrayInputStream(memory.toByteArray());
+    }
+    return Files.newInputStream(file);
+  }
+
+  /** Read the whole stream into memory, regardless of whether it was spilled. */
+  public synchronized byte[] toByteArray() throws IOException {
+    if (memory != null) {
+      return memory.toByteArray();
+    }
+    return Files.readAllBytes(file);
+  }
+
+  /** Delete the spill file, if any. The stream's contents are unreadable afterwards. */
+  public synchronized void delete() throws IOException {
+    if (file != null) {
+      close();
+      Files.deleteIfExists(file);
+    }
+  }
+}
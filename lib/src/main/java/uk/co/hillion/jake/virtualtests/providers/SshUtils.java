@@ -2,32 +2,120 @@ package uk.co.hillion.jake.virtualtests.providers;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class SshUtils {
+  private static final long ConnectInitialIntervalMillis = 100;
+  private static final long ConnectMaxIntervalMillis = 2000;
+  private static final int ProbeTimeoutMillis = 1000;
+
+  // A pooled session is disconnected after this many keep-alives go unanswered in a row.
+  private static final int ServerAliveIntervalMillis = 10000;
+  private static final int ServerAliveCountMax = 3;
+
+  private static final ScheduledExecutorService evictor =
+      Executors.newSingleThreadScheduledExecutor(AsyncUtils.threadFactory("virtualtests-ssh"));
+
   public static ManagedSession getManagedSession(Session session) throws IOException {
     return getManagedSession(session, 0);
   }
 
   public static ManagedSession getManagedSession(Session session, long timeoutMillis)
       throws IOException {
+    return getManagedSession(session, timeoutMillis, BuildListener.Span.None);
+  }
+
+  /**
+   * Connect a session, retrying until the timeout with backoff between attempts. When retrying,
+   * each attempt first probes the port with a short timeout, as a guest that is still booting
+   * tends to drop connections rather than refuse them, and a full connect to it would hang for
+   * far longer than the probe.
+   */
+  private static ManagedSession getManagedSession(
+      Session session, long timeoutMillis, BuildListener.Span span) throws IOException {
     Exception e;
-    long startTime = System.currentTimeMillis();
+    int attempts = 0;
+    Backoff backoff =
+        new Backoff(ConnectInitialIntervalMillis, ConnectMaxIntervalMillis, timeoutMillis);
     do {
       try {
-        session.connect();
+        attempts++;
+        if (timeoutMillis > 0) {
+          probe(session.getHost(), session.getPort(), backoff.remainingMillis());
+          // Never past the deadline, and never 0, which JSch takes as no timeout at all.
+          session.connect(
+              (int) Math.max(Math.min(backoff.remainingMillis(), Integer.MAX_VALUE), 1));
+        } else {
+          session.connect();
+        }
+        span.tag("attempts", Integer.toString(attempts));
         return new ManagedSession(session);
-      } catch (JSchException ex) {
+      } catch (IOException | JSchException ex) {
         e = ex;
       }
-    } while (System.currentTimeMillis() < startTime + timeoutMillis);
+    } while (backoff.sleep());
 
+    span.tag("attempts", Integer.toString(attempts));
     throw new IOException(e);
   }
 
+  /** Check that a TCP port accepts connections, failing within at most a second. */
+  static void probe(String host, int port, long timeoutMillis) throws IOException {
+    try (Socket socket = new Socket()) {
+      socket.connect(
+          new InetSocketAddress(host, port),
+          (int) Math.max(Math.min(timeoutMillis, ProbeTimeoutMillis), 1));
+    }
+  }
+
+  /**
+   * Wrap a stream given to a channel, so that closing it flushes, but does not close, the wrapped
+   * stream and then runs {@code onClose}. JSch closes the extended (stderr) stream of an exec
+   * channel only once the channel has closed and its exit status is known, so wrapping that stream
+   * signals command completion without polling.
+   */
+  public static OutputStream onClose(OutputStream out, Runnable onClose) {
+    return new FilterOutputStream(out) {
+      private boolean closed = false;
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+          closed = true;
+        }
+        try {
+          out.flush();
+        } finally {
+          onClose.run();
+        }
+      }
+    };
+  }
+
   public static class ManagedSession implements AutoCloseable {
     private final Session session;
 
@@ -40,13 +128,27 @@ public class SshUtils {
     }
 
     public ManagedChannel<ChannelExec> getChannelExec() throws IOException {
+      return openChannel("exec", null, null);
+    }
+
+    public ManagedChannel<ChannelSftp> getChannelSftp() throws IOException {
+      return openChannel("sftp", null, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Channel> ManagedChannel<T> openChannel(
+        String type, Runnable onClose, Runnable onConnectFailure) throws IOException {
       try {
-        return new ManagedChannel<>((ChannelExec) session.openChannel("exec"));
+        return new ManagedChannel<>((T) session.openChannel(type), onClose, onConnectFailure);
       } catch (JSchException e) {
         throw new IOException(e);
       }
     }
 
+    public boolean isConnected() {
+      return session.isConnected();
+    }
+
     @Override
     public void close() {
       session.disconnect();
@@ -55,20 +157,303 @@ public class SshUtils {
 
   public static class ManagedChannel<T extends Channel> implements AutoCloseable {
     private final T channel;
+    private final Runnable onClose;
+    private final Runnable onConnectFailure;
+    private boolean closed;
 
     public ManagedChannel(T channel) {
+      this(channel, null, null);
+    }
+
+    private ManagedChannel(T channel, Runnable onClose, Runnable onConnectFailure) {
       this.channel = channel;
+      this.onClose = onClose;
+      this.onConnectFailure = onConnectFailure;
     }
 
     public T getChannel() {
       return channel;
     }
 
+    /**
+     * Connect the channel. Opening a channel only reaches the network here, so this is where a
+     * pooled session that has died is found out; on failure the session is taken out of its pool.
+     */
+    public void connect() throws JSchException {
+      try {
+        channel.connect();
+      } catch (JSchException e) {
+        if (onConnectFailure != null) {
+          onConnectFailure.run();
+        }
+        throw e;
+      }
+    }
+
     @Override
     public void close() {
       if (channel.isConnected()) {
         channel.disconnect();
       }
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      if (onClose != null) {
+        onClose.run();
+      }
+    }
+  }
+
+  /**
+   * A pool of authenticated sessions to one host, each carrying several exec channels at once.
+   *
+   * <p>Sessions are created on demand up to {@code maxSessions}, and disconnected once idle for
+   * {@code idleTimeoutMillis}. Sessions send keep-alives, so one whose connection has silently died
+   * disconnects itself and is dropped; a session on which a channel fails to connect is also taken
+   * out of the pool. Closing the pool disconnects idle sessions immediately and sessions in use as
+   * their channels are closed; the pool may be used again after.
+   */
+  public static class SessionPool implements AutoCloseable {
+    private final SessionFactory factory;
+    private final int maxSessions;
+    private final int maxChannelsPerSession;
+    private final long idleTimeoutMillis;
+
+    private final List<PooledSession> sessions = new ArrayList<>();
+    private int connecting = 0;
+    private ScheduledFuture<?> eviction;
+
+    private BuildListener listener = BuildListener.None;
+    private Map<String, String> tags = Map.of();
+
+    public SessionPool(
+        SessionFactory factory, int maxSessions, int maxChannelsPerSession, long idleTimeoutMillis) {
+      if (maxSessions < 1 || maxChannelsPerSession < 1) {
+        throw new IllegalArgumentException("session pool must allow at least one channel");
+      }
+
+      this.factory = factory;
+      this.maxSessions = maxSessions;
+      this.maxChannelsPerSession = maxChannelsPerSession;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /** Report each new session as an {@code ssh.connect} span with the given tags. */
+    public SessionPool setListener(BuildListener listener, Map<String, String> tags) {
+      this.listener = listener;
+      this.tags = Map.copyOf(tags);
+      return this;
+    }
+
+    /**
+     * Open an exec channel on a pooled session, connecting a new session if none has a free
+     * channel. Closing the returned channel hands its slot back to the pool.
+     */
+    public ManagedChannel<ChannelExec> getChannelExec(long connectionTimeoutMillis)
+        throws IOException {
+      return openChannel("exec", connectionTimeoutMillis);
+    }
+
+    /** Open an sftp channel on a pooled session, as {@link #getChannelExec(long)}. */
+    public ManagedChannel<ChannelSftp> getChannelSftp(long connectionTimeoutMillis)
+        throws IOException {
+      return openChannel("sftp", connectionTimeoutMillis);
+    }
+
+    private <T extends Channel> ManagedChannel<T> openChannel(
+        String type, long connectionTimeoutMillis) throws IOException {
+      long deadline = System.currentTimeMillis() + connectionTimeoutMillis;
+
+      while (true) {
+        PooledSession pooled = acquire(deadline);
+        if (pooled == null) {
+          pooled = connect(connectionTimeoutMillis);
+        }
+
+        try {
+          PooledSession owner = pooled;
+          return pooled.session.openChannel(type, () -> release(owner), () -> retire(owner));
+        } catch (IOException e) {
+          // The session disconnected between the check in acquire and opening a channel.
+          retire(pooled);
+          release(pooled);
+          if (System.currentTimeMillis() >= deadline) {
+            throw e;
+          }
+        }
+      }
+    }
+
+    /** Reserve a channel slot on an existing session, or return null if a new one may be made. */
+    private synchronized PooledSession acquire(long deadline) throws IOException {
+      while (true) {
+        evict();
+
+        for (PooledSession s : sessions) {
+          if (s.channels < maxChannelsPerSession && s.session.isConnected()) {
+            s.channels++;
+            return s;
+          }
+        }
+
+        if (sessions.size() + connecting < maxSessions) {
+          connecting++;
+          return null;
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new IOException("timed out waiting for a pooled ssh session");
+        }
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+    }
+
+    private PooledSession connect(long connectionTimeoutMillis) throws IOException {
+      BuildListener.Span span = listener.start("ssh.connect", tags);
+      try {
+        Session session;
+        try {
+          session = factory.create();
+          session.setServerAliveInterval(ServerAliveIntervalMillis);
+          session.setServerAliveCountMax(ServerAliveCountMax);
+        } catch (JSchException e) {
+          throw new IOException(e);
+        }
+
+        PooledSession pooled =
+            new PooledSession(getManagedSession(session, connectionTimeoutMillis, span));
+        pooled.channels = 1;
+        synchronized (this) {
+          sessions.add(pooled);
+        }
+        return pooled;
+      } catch (IOException | RuntimeException e) {
+        span.fail(e);
+        throw e;
+      } finally {
+        span.close();
+        synchronized (this) {
+          connecting--;
+          notifyAll();
+        }
+      }
+    }
+
+    private synchronized void release(PooledSession pooled) {
+      pooled.channels--;
+      pooled.lastUsed = System.currentTimeMillis();
+      if (pooled.retired && pooled.channels == 0) {
+        discard(pooled);
+      } else if (pooled.channels == 0) {
+        scheduleEviction();
+      }
+      notifyAll();
+    }
+
+    /** Hand out no more channels on a session, and disconnect it once its channels are closed. */
+    private synchronized void retire(PooledSession pooled) {
+      pooled.retired = true;
+      sessions.remove(pooled);
+      if (pooled.channels == 0) {
+        discard(pooled);
+      }
+      notifyAll();
+    }
+
+    private synchronized void discard(PooledSession pooled) {
+      sessions.remove(pooled);
+      pooled.session.close();
+      notifyAll();
+    }
+
+    /**
+     * Evict idle sessions once the earliest of them times out, rather than waiting for the next
+     * channel to be asked for. One eviction is pending at a time, and it schedules the next.
+     */
+    private void scheduleEviction() {
+      if (eviction != null) {
+        return;
+      }
+
+      long next = Long.MAX_VALUE;
+      for (PooledSession s : sessions) {
+        if (s.channels == 0) {
+          next = Math.min(next, s.lastUsed + idleTimeoutMillis);
+        }
+      }
+      if (next != Long.MAX_VALUE) {
+        eviction =
+            evictor.schedule(
+                this::evictScheduled,
+                Math.max(0, next - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private synchronized void evictScheduled() {
+      eviction = null;
+      evict();
+      scheduleEviction();
+    }
+
+    /** Drop sessions that have died, and idle sessions past the idle timeout. */
+    private void evict() {
+      long now = System.currentTimeMillis();
+      Iterator<PooledSession> it = sessions.iterator();
+      while (it.hasNext()) {
+        PooledSession s = it.next();
+        boolean idle = s.channels == 0 && now - s.lastUsed >= idleTimeoutMillis;
+        if (idle || (s.channels == 0 && !s.session.isConnected())) {
+          it.remove();
+          s.session.close();
+        }
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (eviction != null) {
+        eviction.cancel(false);
+        eviction = null;
+      }
+
+      Iterator<PooledSession> it = sessions.iterator();
+      while (it.hasNext()) {
+        PooledSession s = it.next();
+        if (s.channels == 0) {
+          it.remove();
+          s.session.close();
+        } else {
+          s.retired = true;
+          it.remove();
+        }
+      }
+      notifyAll();
+    }
+
+    public interface SessionFactory {
+      Session create() throws JSchException;
+    }
+
+    private static class PooledSession {
+      private final ManagedSession session;
+      private int channels = 0;
+      private long lastUsed = System.currentTimeMillis();
+      private boolean retired = false;
+
+      private PooledSession(ManagedSession session) {
+        this.session = session;
+      }
     }
   }
 }
@@ -0,0 +1,129 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every outstanding Proxmox task from a single thread, completing a future for each task
+ * once it stops.
+ *
+ * <p>Each task is first checked soon after it is submitted, and then at doubling intervals up to a
+ * maximum, so short tasks complete quickly while long tasks cost few status calls.
+ */
+class TaskWatcher {
+  private final StatusSource source;
+  private final long initialIntervalMillis;
+  private final long maxIntervalMillis;
+
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(AsyncUtils.threadFactory("virtualtests-tasks"));
+
+  private final Set<Pending> pending = new HashSet<>();
+  private ScheduledFuture<?> nextTick;
+  private long nextTickAt = Long.MAX_VALUE;
+
+  TaskWatcher(StatusSource source, long initialIntervalMillis, long maxIntervalMillis) {
+    this.source = source;
+    this.initialIntervalMillis = initialIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+  }
+
+  /** Watch a task. Cancelling the returned future stops watching it. */
+  synchronized CompletableFuture<Void> watch(String upid) {
+    Pending p = new Pending(upid, System.currentTimeMillis() + initialIntervalMillis);
+    pending.add(p);
+    p.future.whenComplete((r, t) -> remove(p));
+
+    schedule();
+    return p.future;
+  }
+
+  private synchronized void remove(Pending p) {
+    pending.remove(p);
+  }
+
+  /** Make sure a tick is scheduled for the earliest due task. */
+  private synchronized void schedule() {
+    long earliest = Long.MAX_VALUE;
+    for (Pending p : pending) {
+      earliest = Math.min(earliest, p.nextCheck);
+    }
+
+    if (earliest == Long.MAX_VALUE || earliest >= nextTickAt) {
+      return;
+    }
+
+    if (nextTick != null) {
+      nextTick.cancel(false);
+    }
+    nextTickAt = earliest;
+    nextTick =
+        scheduler.schedule(
+            this::tick,
+            Math.max(0, earliest - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+  }
+
+  private void tick() {
+    List<Pending> due = new ArrayList<>();
+    synchronized (this) {
+      nextTick = null;
+      nextTickAt = Long.MAX_VALUE;
+
+      long now = System.currentTimeMillis();
+      for (Pending p : pending) {
+        if (p.nextCheck <= now) {
+          due.add(p);
+        }
+      }
+    }
+
+    for (Pending p : due) {
+      if (p.future.isDone()) {
+        continue;
+      }
+
+      try {
+        if (source.isStopped(p.upid)) {
+          p.future.complete(null);
+          continue;
+        }
+      } catch (IOException | RuntimeException e) {
+        p.future.completeExceptionally(e);
+        continue;
+      }
+
+      synchronized (this) {
+        p.interval = Math.min(p.interval * 2, maxIntervalMillis);
+        p.nextCheck = System.currentTimeMillis() + p.interval;
+      }
+    }
+
+    schedule();
+  }
+
+  interface StatusSource {
+    boolean isStopped(String upid) throws IOException;
+  }
+
+  private class Pending {
+    private final String upid;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private long interval = initialIntervalMillis;
+    private long nextCheck;
+
+    private Pending(String upid, long nextCheck) {
+      this.upid = upid;
+      this.nextCheck = nextCheck;
+    }
+  }
+}
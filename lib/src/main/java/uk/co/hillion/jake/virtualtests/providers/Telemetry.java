@@ -0,0 +1,398 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the CPU, memory, disk and network use of a node at a fixed interval, into a time series
+ * that a test can query while it runs or write out afterwards. Start one with {@link
+ * Node#startTelemetry}.
+ *
+ * <p>The node runs a shell loop that prints its kernel counters from {@code /proc} each interval,
+ * streamed back over a single long-lived command, so sampling costs no connection or round trip
+ * per sample. Each sample holds the rates over the interval before it, and is timestamped when it
+ * arrives. Counters are summed over every disk, not counting partitions and virtual devices, and
+ * every network interface but loopback.
+ *
+ * <p>Sampling ends when the telemetry is closed, or when the node stops or resets, after which the
+ * samples taken remain.
+ */
+public class Telemetry implements AutoCloseable {
+  private static final String Script =
+      "echo \"@pid $$\"\n"
+          + "while :; do\n"
+          + "  echo @uptime; cat /proc/uptime\n"
+          + "  echo @stat; head -n 1 /proc/stat\n"
+          + "  echo @meminfo; cat /proc/meminfo\n"
+          + "  echo @diskstats; cat /proc/diskstats\n"
+          + "  echo @net; cat /proc/net/dev\n"
+          + "  echo @end\n"
+          + "  sleep %s\n"
+          + "done\n";
+
+  private static final long SectorBytes = 512;
+
+  private final Node node;
+  private final CompletableFuture<Long> pid = new CompletableFuture<>();
+  private final List<Sample> samples = new ArrayList<>();
+
+  // Only touched by the thread delivering the command's output.
+  private final List<String> block = new ArrayList<>();
+  private String section;
+  private Snapshot previous;
+
+  private CompletableFuture<Integer> stream;
+  private volatile String lastError;
+
+  private Telemetry(Node node) {
+    this.node = node;
+  }
+
+  static Telemetry start(Node node, long intervalMillis, long connectionTimeoutMillis)
+      throws IOException {
+    if (intervalMillis < 1) {
+      throw new IllegalArgumentException("interval must be at least 1ms");
+    }
+
+    Telemetry telemetry = new Telemetry(node);
+    String interval = BigDecimal.valueOf(intervalMillis, 3).stripTrailingZeros().toPlainString();
+    telemetry.stream =
+        node.sshAsync(
+            String.format(Script, interval),
+            new LineOutputStream(telemetry::onLine),
+            new LineOutputStream(line -> telemetry.lastError = line),
+            connectionTimeoutMillis);
+    telemetry.stream.whenComplete(
+        (code, t) ->
+            telemetry.pid.completeExceptionally(
+                t != null ? t : new IOException(telemetry.failure(code))));
+
+    try {
+      AsyncUtils.get(telemetry.pid.orTimeout(connectionTimeoutMillis, TimeUnit.MILLISECONDS));
+    } catch (IOException | RuntimeException e) {
+      telemetry.stream.cancel(true);
+      throw e;
+    }
+    return telemetry;
+  }
+
+  /** Every sample taken so far, oldest first. */
+  public synchronized List<Sample> getSamples() {
+    return List.copyOf(samples);
+  }
+
+  /** The samples taken between two times from {@link System#currentTimeMillis()}, inclusive. */
+  public synchronized List<Sample> getSamples(long fromMillis, long toMillis) {
+    List<Sample> window = new ArrayList<>();
+    for (Sample s : samples) {
+      if (s.timeMillis >= fromMillis && s.timeMillis <= toMillis) {
+        window.add(s);
+      }
+    }
+    return window;
+  }
+
+  /** The most recent sample, or null if none has been taken yet. */
+  public synchronized Sample getLatest() {
+    return samples.isEmpty() ? null : samples.get(samples.size() - 1);
+  }
+
+  public boolean isRunning() {
+    return !stream.isDone();
+  }
+
+  public void write(Path path) throws IOException {
+    try (OutputStream out = Files.newOutputStream(path)) {
+      write(out);
+    }
+  }
+
+  /**
+   * Write every sample taken so far as CSV, with a header row. The stream is flushed but not
+   * closed.
+   */
+  public void write(OutputStream out) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    w.write(
+        "time_ms,cpu_busy_percent,cpu_iowait_percent,memory_used_bytes,memory_total_bytes,"
+            + "disk_read_bytes_per_second,disk_write_bytes_per_second,"
+            + "network_receive_bytes_per_second,network_transmit_bytes_per_second\n");
+    for (Sample s : getSamples()) {
+      w.write(
+          String.format(
+              Locale.ROOT,
+              "%d,%.2f,%.2f,%d,%d,%.0f,%.0f,%.0f,%.0f\n",
+              s.timeMillis,
+              s.cpuBusyPercent,
+              s.cpuIowaitPercent,
+              s.memoryUsedBytes,
+              s.memoryTotalBytes,
+              s.diskReadBytesPerSecond,
+              s.diskWriteBytesPerSecond,
+              s.networkReceiveBytesPerSecond,
+              s.networkTransmitBytesPerSecond));
+    }
+    w.flush();
+  }
+
+  /**
+   * Stop sampling, killing the loop on the node and closing its command. A node that has already
+   * stopped is left alone.
+   */
+  @Override
+  public void close() throws IOException {
+    if (stream.isDone()) {
+      return;
+    }
+
+    try {
+      node.ssh("kill " + pid.getNow(-1L)).close();
+    } finally {
+      stream.cancel(true);
+    }
+  }
+
+  private String failure(Integer code) {
+    String error = lastError;
+    return String.format(
+        "telemetry sampler exited with status %d%s", code, error != null ? ": " + error : "");
+  }
+
+  private void onLine(String line) {
+    if (line.startsWith("@pid ")) {
+      pid.complete(Long.parseLong(line.substring(5).trim()));
+    } else if (line.equals("@end")) {
+      Snapshot snapshot = Snapshot.parse(block);
+      block.clear();
+      section = null;
+
+      if (snapshot != null) {
+        if (previous != null && snapshot.uptimeSeconds > previous.uptimeSeconds) {
+          Sample sample = new Sample(System.currentTimeMillis(), previous, snapshot);
+          synchronized (this) {
+            samples.add(sample);
+          }
+        }
+        previous = snapshot;
+      }
+    } else if (line.startsWith("@")) {
+      section = line.substring(1);
+    } else if (section != null) {
+      block.add(section + "\t" + line);
+    }
+  }
+
+  /** The counters read from a node at one moment, cumulative since it booted. */
+  private static class Snapshot {
+    private double uptimeSeconds;
+    private long cpuTotal;
+    private long cpuIdle;
+    private long cpuIowait;
+    private long memoryTotalKb;
+    private long memoryAvailableKb = -1;
+    private long memoryFreeKb;
+    private long diskReadSectors;
+    private long diskWriteSectors;
+    private long networkReceiveBytes;
+    private long networkTransmitBytes;
+
+    /** Parse a block of lines, each prefixed by its section, or return null if it is malformed. */
+    private static Snapshot parse(List<String> lines) {
+      Snapshot s = new Snapshot();
+      List<String[]> disks = new ArrayList<>();
+      Set<String> diskNames = new HashSet<>();
+
+      try {
+        for (String line : lines) {
+          int tab = line.indexOf('\t');
+          String section = line.substring(0, tab);
+          String[] fields = line.substring(tab + 1).trim().split("\\s+");
+
+          switch (section) {
+            case "uptime":
+              s.uptimeSeconds = Double.parseDouble(fields[0]);
+              break;
+            case "stat":
+              // user nice system idle iowait irq softirq steal, where user includes guest time
+              for (int i = 1; i <= 8 && i < fields.length; i++) {
+                s.cpuTotal += Long.parseLong(fields[i]);
+              }
+              s.cpuIowait = Long.parseLong(fields[5]);
+              s.cpuIdle = Long.parseLong(fields[4]) + s.cpuIowait;
+              break;
+            case "meminfo":
+              s.parseMeminfo(fields);
+              break;
+            case "diskstats":
+              if (fields.length >= 10 && !isVirtualDisk(fields[2])) {
+                disks.add(fields);
+                diskNames.add(fields[2]);
+              }
+              break;
+            case "net":
+              s.parseNetDev(line.substring(tab + 1));
+              break;
+            default:
+              break;
+          }
+        }
+
+        for (String[] d : disks) {
+          if (!isPartition(d[2], diskNames)) {
+            s.diskReadSectors += Long.parseLong(d[5]);
+            s.diskWriteSectors += Long.parseLong(d[9]);
+          }
+        }
+      } catch (RuntimeException e) {
+        return null;
+      }
+      return s.uptimeSeconds > 0 ? s : null;
+    }
+
+    private void parseMeminfo(String[] fields) {
+      long kb = Long.parseLong(fields[1]);
+      switch (fields[0]) {
+        case "MemTotal:":
+          memoryTotalKb = kb;
+          break;
+        case "MemAvailable:":
+          memoryAvailableKb = kb;
+          break;
+        case "MemFree:":
+        case "Buffers:":
+        case "Cached:":
+          // Approximates MemAvailable on kernels older than 3.14.
+          memoryFreeKb += kb;
+          break;
+        default:
+          break;
+      }
+    }
+
+    private void parseNetDev(String line) {
+      int colon = line.indexOf(':');
+      if (colon == -1) {
+        // One of the two header lines.
+        return;
+      }
+
+      String name = line.substring(0, colon).trim();
+      if (name.equals("lo")) {
+        return;
+      }
+      String[] counters = line.substring(colon + 1).trim().split("\\s+");
+      networkReceiveBytes += Long.parseLong(counters[0]);
+      networkTransmitBytes += Long.parseLong(counters[8]);
+    }
+
+    private long memoryUsedBytes() {
+      long available = memoryAvailableKb != -1 ? memoryAvailableKb : memoryFreeKb;
+      return (memoryTotalKb - available) * 1024;
+    }
+
+    private static boolean isVirtualDisk(String name) {
+      return name.startsWith("loop")
+          || name.startsWith("ram")
+          || name.startsWith("zram")
+          || name.startsWith("dm-")
+          || name.startsWith("md")
+          || name.startsWith("sr");
+    }
+
+    /** A partition is named after its disk, as {@code vda1} is after {@code vda}. */
+    private static boolean isPartition(String name, Set<String> disks) {
+      for (String d : disks) {
+        if (!d.equals(name) && name.startsWith(d)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** A node's use of its resources over the interval before a sample. */
+  public static class Sample {
+    private final long timeMillis;
+    private final double cpuBusyPercent;
+    private final double cpuIowaitPercent;
+    private final long memoryUsedBytes;
+    private final long memoryTotalBytes;
+    private final double diskReadBytesPerSecond;
+    private final double diskWriteBytesPerSecond;
+    private final double networkReceiveBytesPerSecond;
+    private final double networkTransmitBytesPerSecond;
+
+    private Sample(long timeMillis, Snapshot from, Snapshot to) {
+      double seconds = to.uptimeSeconds - from.uptimeSeconds;
+      // An interval shorter than a clock tick can pass with no CPU time accounted at all.
+      long cpu = to.cpuTotal - from.cpuTotal;
+
+      this.timeMillis = timeMillis;
+      this.cpuBusyPercent = cpu > 0 ? 100.0 * (cpu - (to.cpuIdle - from.cpuIdle)) / cpu : 0;
+      this.cpuIowaitPercent = cpu > 0 ? 100.0 * (to.cpuIowait - from.cpuIowait) / cpu : 0;
+      this.memoryUsedBytes = to.memoryUsedBytes();
+      this.memoryTotalBytes = to.memoryTotalKb * 1024;
+      this.diskReadBytesPerSecond =
+          SectorBytes * (to.diskReadSectors - from.diskReadSectors) / seconds;
+      this.diskWriteBytesPerSecond =
+          SectorBytes * (to.diskWriteSectors - from.diskWriteSectors) / seconds;
+      this.networkReceiveBytesPerSecond =
+          (to.networkReceiveBytes - from.networkReceiveBytes) / seconds;
+      this.networkTransmitBytesPerSecond =
+          (to.networkTransmitBytes - from.networkTransmitBytes) / seconds;
+    }
+
+    /** When the sample arrived, from {@link System#currentTimeMillis()}. */
+    public long getTimeMillis() {
+      return timeMillis;
+    }
+
+    /** The share of CPU time, across every core, spent neither idle nor waiting for I/O. */
+    public double getCpuBusyPercent() {
+      return cpuBusyPercent;
+    }
+
+    public double getCpuIowaitPercent() {
+      return cpuIowaitPercent;
+    }
+
+    /** Memory in use, not counting caches the kernel can reclaim. */
+    public long getMemoryUsedBytes() {
+      return memoryUsedBytes;
+    }
+
+    public long getMemoryTotalBytes() {
+      return memoryTotalBytes;
+    }
+
+    public double getDiskReadBytesPerSecond() {
+      return diskReadBytesPerSecond;
+    }
+
+    public double getDiskWriteBytesPerSecond() {
+      return diskWriteBytesPerSecond;
+    }
+
+    public double getNetworkReceiveBytesPerSecond() {
+      return networkReceiveBytesPerSecond;
+    }
+
+    public double getNetworkTransmitBytesPerSecond() {
+      return networkTransmitBytesPerSecond;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/** Starts spans on a {@link BuildListener}, for the common shapes of instrumented code. */
+class Tracer {
+  private final BuildListener listener;
+
+  Tracer(BuildListener listener) {
+    this.listener = listener;
+  }
+
+  /** Start a span, tagged with alternating keys and values. Null values are left out. */
+  BuildListener.Span span(String name, Object... tags) {
+    if (listener == BuildListener.None) {
+      return BuildListener.Span.None;
+    }
+
+    Map<String, String> map = new LinkedHashMap<>();
+    for (int i = 0; i + 1 < tags.length; i += 2) {
+      if (tags[i + 1] != null) {
+        map.put(tags[i].toString(), tags[i + 1].toString());
+      }
+    }
+    return listener.start(name, map);
+  }
+
+  /** Run a body inside a span, failing the span if the body throws. */
+  <T> T call(String name, Body<T> body, Object... tags) throws IOException {
+    BuildListener.Span span = span(name, tags);
+    try {
+      return body.run();
+    } catch (IOException | RuntimeException e) {
+      span.fail(e);
+      throw e;
+    } finally {
+      span.close();
+    }
+  }
+
+  /** Close a span once a future completes, failing it if the future does. */
+  <T> CompletableFuture<T> track(BuildListener.Span span, CompletableFuture<T> future) {
+    future.whenComplete(
+        (r, t) -> {
+          if (t != null) {
+            span.fail(t);
+          }
+          span.close();
+        });
+    return future;
+  }
+
+  interface Body<T> {
+    T run() throws IOException;
+  }
+}
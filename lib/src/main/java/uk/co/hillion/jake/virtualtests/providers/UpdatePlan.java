@@ -0,0 +1,154 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import uk.co.hillion.jake.virtualtests.structure.StructuralKey;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+/**
+ * How to turn the nodes of an environment into those of a new blueprint, matching each new
+ * template to at most one existing node.
+ *
+ * <p>A node whose template is structurally unchanged is kept as it is. A node whose template
+ * differs only in resources, and which the provider can reconfigure to them, is reconfigured in
+ * place and keeps its setup. Every other new template is added, and every unmatched node removed.
+ * Matches are made in order, so unchanged parts of a topology keep their positions. A match whose
+ * setup depends on that of an added node can be dropped again with {@link #replaceDependents}.
+ */
+class UpdatePlan {
+  enum Action {
+    KEEP,
+    RECONFIGURE,
+    ADD,
+  }
+
+  private final List<Action> actions;
+  private final List<Integer> sources;
+  private final List<Integer> removed;
+
+  private UpdatePlan(List<Action> actions, List<Integer> sources, List<Integer> removed) {
+    this.actions = actions;
+    this.sources = sources;
+    this.removed = removed;
+  }
+
+  /**
+   * @param reconfigurable whether an existing node's template can be reconfigured in place to a new
+   *     template with the same setup
+   */
+  static UpdatePlan create(
+      List<Template> current,
+      List<Template> desired,
+      BiPredicate<Template, Template> reconfigurable) {
+    List<Object> currentKeys = new ArrayList<>(current.size());
+    List<Object> currentSetupKeys = new ArrayList<>(current.size());
+    for (Template t : current) {
+      currentKeys.add(StructuralKey.of(t));
+      currentSetupKeys.add(StructuralKey.ofSetup(t));
+    }
+
+    boolean[] used = new boolean[current.size()];
+    List<Action> actions = new ArrayList<>(desired.size());
+    List<Integer> sources = new ArrayList<>(desired.size());
+
+    // Exact matches first, so that a changed template cannot take an unchanged one's node.
+    for (Template t : desired) {
+      Object key = StructuralKey.of(t);
+      int match = -1;
+      for (int i = 0; i < current.size(); i++) {
+        if (!used[i] && currentKeys.get(i).equals(key)) {
+          match = i;
+          break;
+        }
+      }
+
+      if (match != -1) {
+        used[match] = true;
+      }
+      actions.add(match == -1 ? Action.ADD : Action.KEEP);
+      sources.add(match);
+    }
+
+    for (int node = 0; node < desired.size(); node++) {
+      if (actions.get(node) != Action.ADD) {
+        continue;
+      }
+
+      Template t = desired.get(node);
+      Object key = StructuralKey.ofSetup(t);
+      for (int i = 0; i < current.size(); i++) {
+        if (!used[i]
+            && currentSetupKeys.get(i).equals(key)
+            && reconfigurable.test(current.get(i), t)) {
+          used[i] = true;
+          actions.set(node, Action.RECONFIGURE);
+          sources.set(node, i);
+          break;
+        }
+      }
+    }
+
+    List<Integer> removed = new ArrayList<>();
+    for (int i = 0; i < current.size(); i++) {
+      if (!used[i]) {
+        removed.add(i);
+      }
+    }
+
+    return new UpdatePlan(actions, sources, removed);
+  }
+
+  Action getAction(int node) {
+    return actions.get(node);
+  }
+
+  /** The index of the existing node a new node is kept or reconfigured from, or -1 if added. */
+  int getSource(int node) {
+    return sources.get(node);
+  }
+
+  /** The indices of existing nodes with no place in the new blueprint. */
+  List<Integer> getRemoved() {
+    return removed;
+  }
+
+  /** Build a new node from scratch after all, removing the existing node it was matched to. */
+  void replace(int node) {
+    if (actions.get(node) != Action.ADD) {
+      removed.add(sources.get(node));
+      actions.set(node, Action.ADD);
+      sources.set(node, -1);
+    }
+  }
+
+  /**
+   * Replace every kept or reconfigured node with a setup stage that depends on a stage of an added
+   * node, as it ran against the node that was there before, which had another address. Replacing
+   * a node can make others depend on an added node in turn, so this repeats until none do.
+   */
+  void replaceDependents(SetupGraph setup) {
+    Set<Integer> added = new HashSet<>();
+    for (int node = 0; node < actions.size(); node++) {
+      if (actions.get(node) == Action.ADD) {
+        added.add(node);
+      }
+    }
+
+    Set<Integer> dependent = setup.getDependentNodes(added);
+    while (!dependent.isEmpty()) {
+      for (int node : dependent) {
+        replace(node);
+      }
+      added.addAll(dependent);
+      dependent = setup.getDependentNodes(added);
+    }
+  }
+
+  int size() {
+    return actions.size();
+  }
+}
@@ -0,0 +1,84 @@
+package uk.co.hillion.jake.virtualtests.sharding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * How long each test took in previous runs, kept in a properties file between runs. Each new
+ * duration is averaged with the one before it, so estimates follow a test that changes speed
+ * without swinging on one slow run.
+ */
+class DurationHistory {
+  private final Path file;
+  private final Map<String, Long> durations = new HashMap<>();
+
+  DurationHistory(Path file) throws IOException {
+    this.file = file;
+
+    if (file != null && Files.exists(file)) {
+      Properties properties = new Properties();
+      try (InputStream in = Files.newInputStream(file)) {
+        properties.load(in);
+      }
+
+      for (String name : properties.stringPropertyNames()) {
+        try {
+          durations.put(name, Long.parseLong(properties.getProperty(name)));
+        } catch (NumberFormatException ignored) {
+          // A corrupt entry only costs an estimate.
+        }
+      }
+    }
+  }
+
+  /**
+   * The expected duration of a test: its history if it has one, or else the median of the tests
+   * that do, or the fallback if none do.
+   */
+  synchronized long estimate(String name, long fallbackMillis) {
+    Long known = durations.get(name);
+    if (known != null) {
+      return known;
+    }
+    if (durations.isEmpty()) {
+      return fallbackMillis;
+    }
+
+    List<Long> all = new ArrayList<>(durations.values());
+    Collections.sort(all);
+    return all.get(all.size() / 2);
+  }
+
+  synchronized void record(String name, long millis) {
+    durations.merge(name, millis, (previous, latest) -> (previous + latest) / 2);
+  }
+
+  synchronized void save() throws IOException {
+    if (file == null) {
+      return;
+    }
+
+    Properties properties = new Properties();
+    for (Map.Entry<String, Long> e : durations.entrySet()) {
+      properties.setProperty(e.getKey(), Long.toString(e.getValue()));
+    }
+
+    Path directory = file.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      properties.store(out, "virtualtests test durations: name=millis");
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
@@ -0,0 +1,254 @@
+package uk.co.hillion.jake.virtualtests.sharding;
+
+import uk.co.hillion.jake.virtualtests.providers.Environment;
+import uk.co.hillion.jake.virtualtests.providers.ImpossibleBlueprintException;
+import uk.co.hillion.jake.virtualtests.providers.Node;
+import uk.co.hillion.jake.virtualtests.providers.Provider;
+import uk.co.hillion.jake.virtualtests.structure.Blueprint;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a suite of tests that all need the same blueprint across several replicas of it at once.
+ *
+ * <p>Each replica is built through {@link Provider#build} and works through its share of the
+ * tests, see {@link WorkQueue}, taking work from the others once its own runs out. Tests are
+ * shared out by how long they took in previous runs, recorded in the history file if one is set.
+ *
+ * <p>After every test the replica is checked with the health check, by default that every node
+ * still runs commands. A replica that fails its check, or fails to build, is quarantined: released
+ * to its provider and replaced by a fresh build, while the other replicas take over its tests.
+ */
+public class ShardedRunner {
+  /** Every node still accepts and runs a command. */
+  public static final HealthCheck NodesResponsive =
+      environment -> {
+        for (Node n : environment.getNodes()) {
+          try (Node.SSHResult r = n.ssh("true")) {
+            if (r.getReturnCode() != 0) {
+              return false;
+            }
+          }
+        }
+        return true;
+      };
+
+  private final Provider provider;
+  private final Blueprint blueprint;
+  private final int replicas;
+
+  private final Map<String, ShardedTest> tests = new LinkedHashMap<>();
+
+  private Path historyFile;
+  private HealthCheck healthCheck = NodesResponsive;
+  private int maxRebuilds = 3;
+  private long defaultEstimateMillis = 60000;
+
+  public ShardedRunner(Provider provider, Blueprint blueprint, int replicas) {
+    if (replicas < 1) {
+      throw new IllegalArgumentException("at least one replica is required");
+    }
+
+    this.provider = provider;
+    this.blueprint = blueprint;
+    this.replicas = replicas;
+  }
+
+  public ShardedRunner addTest(String name, ShardedTest test) {
+    if (tests.putIfAbsent(name, test) != null) {
+      throw new IllegalArgumentException(String.format("duplicate test name `%s`", name));
+    }
+    return this;
+  }
+
+  /** Read estimates from, and record this run's durations to, a properties file. */
+  public ShardedRunner setHistoryFile(Path historyFile) {
+    this.historyFile = historyFile;
+    return this;
+  }
+
+  public ShardedRunner setHealthCheck(HealthCheck healthCheck) {
+    this.healthCheck = healthCheck;
+    return this;
+  }
+
+  /** Set how many times, across the run, replicas may be rebuilt before they are given up. */
+  public ShardedRunner setMaxRebuilds(int maxRebuilds) {
+    this.maxRebuilds = maxRebuilds;
+    return this;
+  }
+
+  /** Set the estimate for tests when there is no history at all. */
+  public ShardedRunner setDefaultEstimateMillis(long defaultEstimateMillis) {
+    this.defaultEstimateMillis = defaultEstimateMillis;
+    return this;
+  }
+
+  /**
+   * Build the replicas and run every test, returning once all have finished and every replica is
+   * closed. Tests left over when every replica has been given up are reported as failed.
+   *
+   * @return a result for every test, in the order they were added
+   */
+  public List<TestResult> run() throws IOException {
+    DurationHistory history = new DurationHistory(historyFile);
+    Map<String, Long> estimates = new LinkedHashMap<>();
+    for (String name : tests.keySet()) {
+      estimates.put(name, history.estimate(name, defaultEstimateMillis));
+    }
+
+    Run run =
+        new Run(
+            history,
+            new WorkQueue<>(new ArrayList<>(tests.keySet()), estimates::get, replicas));
+
+    ExecutorService executor = Executors.newFixedThreadPool(replicas);
+    try {
+      List<Future<?>> workers = new ArrayList<>(replicas);
+      for (int i = 0; i < replicas; i++) {
+        int replica = i;
+        workers.add(executor.submit(() -> run.work(replica)));
+      }
+
+      for (Future<?> w : workers) {
+        try {
+          w.get();
+        } catch (ExecutionException e) {
+          throw new IOException(e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (String name : run.queue.drain()) {
+      IOException reason = new IOException("no replica was available to run the test");
+      if (run.buildFailure != null) {
+        reason.initCause(run.buildFailure);
+      }
+      run.results.put(name, new TestResult(name, -1, 0, reason));
+    }
+
+    history.save();
+
+    List<TestResult> ordered = new ArrayList<>(tests.size());
+    for (String name : tests.keySet()) {
+      ordered.add(run.results.get(name));
+    }
+    return ordered;
+  }
+
+  /** The state of one call to {@link #run()}, shared by its replicas. */
+  private class Run {
+    private final DurationHistory history;
+    private final WorkQueue<String> queue;
+    private final Map<String, TestResult> results = new LinkedHashMap<>();
+
+    private int rebuilds = 0;
+    private Exception buildFailure;
+
+    private Run(DurationHistory history, WorkQueue<String> queue) {
+      this.history = history;
+      this.queue = queue;
+    }
+
+    private void work(int replica) {
+      Environment environment = build(false);
+      try {
+        while (environment != null) {
+          String name = queue.next(replica);
+          if (name == null) {
+            return;
+          }
+
+          TestResult result = runTest(name, replica, environment);
+          synchronized (this) {
+            results.put(name, result);
+          }
+          if (result.isPassed()) {
+            history.record(name, result.getDurationMillis());
+          }
+
+          if (!isClean(environment)) {
+            environment.release();
+            // Rebuilding with nothing left to run would spend a rebuild another replica may need.
+            environment = queue.isEmpty() ? null : build(true);
+          }
+        }
+      } finally {
+        if (environment != null) {
+          try {
+            environment.close();
+          } catch (IOException ignored) {
+            // The results stand whether or not teardown succeeds.
+          }
+        }
+      }
+    }
+
+    private TestResult runTest(String name, int replica, Environment environment) {
+      long start = System.currentTimeMillis();
+      Throwable failure = null;
+      try {
+        tests.get(name).run(environment);
+      } catch (Exception | AssertionError e) {
+        failure = e;
+      }
+      return new TestResult(name, replica, System.currentTimeMillis() - start, failure);
+    }
+
+    private boolean isClean(Environment environment) {
+      try {
+        return healthCheck.isClean(environment);
+      } catch (IOException | RuntimeException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Build a replica, retrying while rebuilds remain. Returns null once they run out, leaving the
+     * replica's tests to the others.
+     */
+    private Environment build(boolean rebuild) {
+      while (true) {
+        synchronized (this) {
+          if (rebuild) {
+            if (rebuilds >= maxRebuilds) {
+              return null;
+            }
+            rebuilds++;
+          }
+        }
+
+        try {
+          return provider.build(blueprint);
+        } catch (IOException | ImpossibleBlueprintException | RuntimeException e) {
+          synchronized (this) {
+            buildFailure = e;
+          }
+          if (e instanceof ImpossibleBlueprintException) {
+            return null;
+          }
+        }
+        rebuild = true;
+      }
+    }
+  }
+
+  /** Decides whether a replica is still fit to run tests after one has finished on it. */
+  public interface HealthCheck {
+    boolean isClean(Environment environment) throws IOException;
+  }
+}
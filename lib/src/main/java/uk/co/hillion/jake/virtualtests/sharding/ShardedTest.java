@@ -0,0 +1,8 @@
+package uk.co.hillion.jake.virtualtests.sharding;
+
+import uk.co.hillion.jake.virtualtests.providers.Environment;
+
+/** A test run by a {@link ShardedRunner} against whichever replica is free. */
+public interface ShardedTest {
+  void run(Environment environment) throws Exception;
+}
@@ -0,0 +1,45 @@
+package uk.co.hillion.jake.virtualtests.sharding;
+
+/** The outcome of one test of a sharded run. */
+public class TestResult {
+  private final String name;
+  private final int replica;
+  private final long durationMillis;
+  private final Throwable failure;
+
+  TestResult(String name, int replica, long durationMillis, Throwable failure) {
+    this.name = name;
+    this.replica = replica;
+    this.durationMillis = durationMillis;
+    this.failure = failure;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** The index of the replica the test ran on, or -1 if it never ran. */
+  public int getReplica() {
+    return replica;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public boolean isPassed() {
+    return failure == null;
+  }
+
+  /** What the test threw, or why it could not run, or null if it passed. */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s %s on replica %d in %dms",
+        name, isPassed() ? "passed" : "failed", replica, durationMillis);
+  }
+}
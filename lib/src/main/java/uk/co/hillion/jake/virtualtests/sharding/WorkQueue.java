@@ -0,0 +1,85 @@
+package uk.co.hillion.jake.virtualtests.sharding;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Deals tasks out to shards so that they finish together.
+ *
+ * <p>Tasks are first assigned longest first, each to the shard with the least estimated work so
+ * far. Each shard then works through its own tasks longest first, and a shard that runs out steals
+ * the shortest remaining task of the shard with the most estimated work left, which evens out
+ * estimates that were wrong and shards that were slow or lost.
+ */
+class WorkQueue<T> {
+  private final ToLongFunction<T> estimate;
+  private final List<Deque<T>> queues;
+  private final long[] remaining;
+
+  WorkQueue(List<T> tasks, ToLongFunction<T> estimate, int shards) {
+    this.estimate = estimate;
+    this.queues = new ArrayList<>(shards);
+    this.remaining = new long[shards];
+    for (int i = 0; i < shards; i++) {
+      queues.add(new ArrayDeque<>());
+    }
+
+    List<T> sorted = new ArrayList<>(tasks);
+    sorted.sort(Comparator.comparingLong(estimate).reversed());
+    for (T task : sorted) {
+      int least = 0;
+      for (int i = 1; i < shards; i++) {
+        if (remaining[i] < remaining[least]) {
+          least = i;
+        }
+      }
+      queues.get(least).addLast(task);
+      remaining[least] += estimate.applyAsLong(task);
+    }
+  }
+
+  /** The next task for a shard, stolen from another if it has none of its own, or null if done. */
+  synchronized T next(int shard) {
+    int from = shard;
+    if (queues.get(shard).isEmpty()) {
+      from = -1;
+      for (int i = 0; i < queues.size(); i++) {
+        if (!queues.get(i).isEmpty() && (from == -1 || remaining[i] > remaining[from])) {
+          from = i;
+        }
+      }
+      if (from == -1) {
+        return null;
+      }
+    }
+
+    T task = from == shard ? queues.get(from).pollFirst() : queues.get(from).pollLast();
+    remaining[from] -= estimate.applyAsLong(task);
+    return task;
+  }
+
+  /** Whether every task has been handed out. */
+  synchronized boolean isEmpty() {
+    for (Deque<T> queue : queues) {
+      if (!queue.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Remove and return every task not yet handed out. */
+  synchronized List<T> drain() {
+    List<T> left = new ArrayList<>();
+    for (int i = 0; i < queues.size(); i++) {
+      left.addAll(queues.get(i));
+      queues.get(i).clear();
+      remaining[i] = 0;
+    }
+    return left;
+  }
+}
@@ -1,4 +1,19 @@
 package uk.co.hillion.jake.virtualtests.structure;
 
+/** Request a bridge between nodes of a blueprint, optionally with shaped links. */
 public class BridgeRequest {
+  private LinkProperties linkProperties = LinkProperties.None;
+
+  /**
+   * Shape the links through the bridge from the moment it is built. Providers that cannot shape
+   * links reject a blueprint whose bridges are not {@link LinkProperties#None}.
+   */
+  public BridgeRequest setLinkProperties(LinkProperties linkProperties) {
+    this.linkProperties = linkProperties;
+    return this;
+  }
+
+  public LinkProperties getLinkProperties() {
+    return linkProperties;
+  }
 }
@@ -0,0 +1,130 @@
+package uk.co.hillion.jake.virtualtests.structure;
+
+import java.util.Objects;
+
+/**
+ * The conditions of the links through a bridge, such as a delay or a rate limit, so that tests can
+ * reproduce wide area or degraded networks. Each property applies to the traffic the bridge
+ * delivers to each interface attached to it, so a packet between two nodes is delayed once.
+ *
+ * <p>Properties are immutable, and each {@code with} method returns a copy with one property
+ * changed, starting from {@link #None}.
+ */
+public final class LinkProperties {
+  /** An unshaped link. */
+  public static final LinkProperties None = new LinkProperties(0, 0, 0, 0, 0);
+
+  private final double delayMillis;
+  private final double jitterMillis;
+  private final long rateKbit;
+  private final double lossPercent;
+  private final double reorderPercent;
+
+  private LinkProperties(
+      double delayMillis,
+      double jitterMillis,
+      long rateKbit,
+      double lossPercent,
+      double reorderPercent) {
+    this.delayMillis = delayMillis;
+    this.jitterMillis = jitterMillis;
+    this.rateKbit = rateKbit;
+    this.lossPercent = lossPercent;
+    this.reorderPercent = reorderPercent;
+  }
+
+  public LinkProperties withDelayMillis(double delayMillis) {
+    checkNonNegative(delayMillis, "delay");
+    return new LinkProperties(delayMillis, jitterMillis, rateKbit, lossPercent, reorderPercent);
+  }
+
+  /** Vary the delay of each packet by up to this much either way. */
+  public LinkProperties withJitterMillis(double jitterMillis) {
+    checkNonNegative(jitterMillis, "jitter");
+    return new LinkProperties(delayMillis, jitterMillis, rateKbit, lossPercent, reorderPercent);
+  }
+
+  /** Limit the rate of each link, or remove the limit with 0. */
+  public LinkProperties withRateKbit(long rateKbit) {
+    checkNonNegative(rateKbit, "rate");
+    return new LinkProperties(delayMillis, jitterMillis, rateKbit, lossPercent, reorderPercent);
+  }
+
+  public LinkProperties withLossPercent(double lossPercent) {
+    checkPercent(lossPercent, "loss");
+    return new LinkProperties(delayMillis, jitterMillis, rateKbit, lossPercent, reorderPercent);
+  }
+
+  /**
+   * Send this share of packets immediately, ahead of those being delayed. Reordering only has an
+   * effect on a link with a delay.
+   */
+  public LinkProperties withReorderPercent(double reorderPercent) {
+    checkPercent(reorderPercent, "reorder");
+    return new LinkProperties(delayMillis, jitterMillis, rateKbit, lossPercent, reorderPercent);
+  }
+
+  public double getDelayMillis() {
+    return delayMillis;
+  }
+
+  public double getJitterMillis() {
+    return jitterMillis;
+  }
+
+  public long getRateKbit() {
+    return rateKbit;
+  }
+
+  public double getLossPercent() {
+    return lossPercent;
+  }
+
+  public double getReorderPercent() {
+    return reorderPercent;
+  }
+
+  public boolean isNone() {
+    return equals(None);
+  }
+
+  private static void checkNonNegative(double value, String name) {
+    if (!(value >= 0) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException(String.format("%s must be finite and non-negative", name));
+    }
+  }
+
+  private static void checkPercent(double value, String name) {
+    if (!(value >= 0 && value <= 100)) {
+      throw new IllegalArgumentException(String.format("%s must be between 0 and 100", name));
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof LinkProperties)) {
+      return false;
+    }
+    LinkProperties that = (LinkProperties) o;
+    return Double.compare(delayMillis, that.delayMillis) == 0
+        && Double.compare(jitterMillis, that.jitterMillis) == 0
+        && rateKbit == that.rateKbit
+        && Double.compare(lossPercent, that.lossPercent) == 0
+        && Double.compare(reorderPercent, that.reorderPercent) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(delayMillis, jitterMillis, rateKbit, lossPercent, reorderPercent);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "LinkProperties{delay=%sms, jitter=%sms, rate=%dkbit, loss=%s%%, reorder=%s%%}",
+        delayMillis, jitterMillis, rateKbit, lossPercent, reorderPercent);
+  }
+}
@@ -0,0 +1,100 @@
+package uk.co.hillion.jake.virtualtests.structure;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keys for blueprints and templates that are equal when they describe the same structure, whether
+ * or not they are the same objects, so that separately constructed blueprints can be matched up.
+ *
+ * <p>Templates match when they have the same class, distribution, name and resources, and the same
+ * setup stages in the same order. Stages match when their functions, orders, cache keys and
+ * dependencies match. Setup functions match when they are of the same class and capture equal
+ * values, so two lambdas written at the same place match unless they captured different state.
+ */
+public final class StructuralKey {
+  private StructuralKey() {}
+
+  /**
+   * Key a blueprint by its templates, in order, and the classes and link properties of its bridges.
+   * Blueprints that override {@link Object#equals} are their own key.
+   */
+  public static Object of(Blueprint blueprint) {
+    if (overridesEquals(blueprint)) {
+      return blueprint;
+    }
+
+    List<Object> key = new ArrayList<>();
+    key.add(blueprint.getClass());
+    for (Template t : blueprint.getNodes()) {
+      key.add(of(t));
+    }
+    for (BridgeRequest b : blueprint.getBridges()) {
+      key.add(List.of(b.getClass(), b.getLinkProperties()));
+    }
+    return key;
+  }
+
+  public static Object of(Template template) {
+    return List.of(
+        ofSetup(template),
+        template.getCoreCount(),
+        template.getMemoryMb(),
+        template.getInterfaces());
+  }
+
+  /** Key a template by everything but its resources: what runs on it, not what it runs on. */
+  public static Object ofSetup(Template template) {
+    List<Object> key = new ArrayList<>();
+    key.add(template.getClass());
+    key.add(template.dist);
+    key.add(template.getName());
+
+    for (Template.SetupStage s : template.getSetup()) {
+      List<Object> dependencies = new ArrayList<>();
+      for (Template.SetupStage d : s.getDependencies()) {
+        dependencies.add(stageKey(d));
+      }
+      key.add(List.of(stageKey(s), s.isBarrier(), dependencies));
+    }
+    return key;
+  }
+
+  private static Object stageKey(Template.SetupStage stage) {
+    return List.of(
+        functionKey(stage.getFoo()), stage.getOrder(), Optional.ofNullable(stage.getCacheKey()));
+  }
+
+  /**
+   * Key a function by its class and the values of its instance fields, which for a lambda are what
+   * it captured. Functions whose fields cannot be read only match themselves.
+   */
+  private static Object functionKey(Object f) {
+    List<Object> key = new ArrayList<>();
+    key.add(f.getClass());
+    for (Field field : f.getClass().getDeclaredFields()) {
+      if (Modifier.isStatic(field.getModifiers())) {
+        continue;
+      }
+      try {
+        field.setAccessible(true);
+        key.add(field.get(f));
+      } catch (IllegalAccessException | RuntimeException e) {
+        return f;
+      }
+    }
+    return key;
+  }
+
+  private static boolean overridesEquals(Blueprint blueprint) {
+    try {
+      return blueprint.getClass().getMethod("equals", Object.class).getDeclaringClass()
+          != Object.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+}
@@ -50,18 +50,53 @@ public abstract class Template {
     void setup(Environment environment, Node node) throws IOException;
   }
 
+  /**
+   * A single step of setting up a Node.
+   *
+   * <p>By default a stage waits for every stage of a lower order, on every node, to finish. A stage
+   * created with explicit dependencies instead waits only for those stages (on whichever nodes run
+   * them) and for the stages before it on its own node. Dependencies refer to stage instances, so a
+   * Template must return the same instances from each call to {@link #getSetup()} for other
+   * templates to depend on them.
+   *
+   * <p>A stage given a cache key is declared deterministic: running it leaves the node's disk in the
+   * same state whenever the key, the distribution and the cached stages before it are the same,
+   * whatever other nodes are doing. Providers may then restore a node from a cached image of its
+   * leading cached stages instead of running them.
+   */
   public static class SetupStage implements Comparable<SetupStage> {
     private final SetupFunction foo;
     private final int order;
+    private final List<SetupStage> dependencies;
+    private final String cacheKey;
 
     public SetupStage(SetupFunction foo) {
-      this.foo = foo;
-      this.order = Integer.MAX_VALUE / 2;
+      this(foo, Integer.MAX_VALUE / 2);
     }
 
     public SetupStage(SetupFunction foo, int order) {
+      this(foo, order, null, null);
+    }
+
+    public SetupStage(SetupFunction foo, List<SetupStage> dependencies) {
+      this(foo, Integer.MAX_VALUE / 2, dependencies);
+    }
+
+    public SetupStage(SetupFunction foo, int order, List<SetupStage> dependencies) {
+      this(foo, order, List.copyOf(dependencies), null);
+    }
+
+    private SetupStage(
+        SetupFunction foo, int order, List<SetupStage> dependencies, String cacheKey) {
       this.foo = foo;
       this.order = order;
+      this.dependencies = dependencies;
+      this.cacheKey = cacheKey;
+    }
+
+    /** Return a copy of this stage declared deterministic under the given cache key. */
+    public SetupStage withCacheKey(String cacheKey) {
+      return new SetupStage(foo, order, dependencies, cacheKey);
     }
 
     public int getOrder() {
@@ -72,6 +107,20 @@ public abstract class Template {
       return foo;
     }
 
+    /** Whether this stage waits for all lower order stages, rather than explicit dependencies. */
+    public boolean isBarrier() {
+      return dependencies == null;
+    }
+
+    public List<SetupStage> getDependencies() {
+      return dependencies == null ? List.of() : dependencies;
+    }
+
+    /** The stage's cache key, or null if the stage is not cacheable. */
+    public String getCacheKey() {
+      return cacheKey;
+    }
+
     @Override
     public int compareTo(SetupStage that) {
       return Integer.compare(this.order, that.order);
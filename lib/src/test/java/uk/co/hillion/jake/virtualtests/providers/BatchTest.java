@@ -0,0 +1,148 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+class BatchTest {
+  @Test
+  void runsEachCommandWithItsOwnOutput() throws IOException {
+    List<Node.SSHResult> results =
+        new ShellNode()
+            .batch()
+            .add("printf 'a\\nb'")
+            .add("echo err >&2; exit 3")
+            .setFailFast(false)
+            .run();
+
+    assertEquals(2, results.size());
+    assertEquals(0, results.get(0).getReturnCode());
+    assertEquals("a\nb", new String(results.get(0).getStdout(), StandardCharsets.UTF_8));
+    assertEquals(3, results.get(1).getReturnCode());
+    assertEquals("err\n", new String(results.get(1).getStderr(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void failFastEndsWithTheFailedCommand() throws IOException {
+    List<Node.SSHResult> results =
+        new ShellNode().batch().add("true").add("false").add("echo never").run();
+
+    assertEquals(2, results.size());
+    assertEquals(1, results.get(1).getReturnCode());
+  }
+
+  @Test
+  void shellFailingBeforeFirstCommandIsReported() {
+    Node node =
+        new ShellNode() {
+          @Override
+          public SSHResult ssh(String command, InputStream stdin, long connectionTimeoutMillis) {
+            return new SSHResult(
+                1, new byte[0], "mktemp: failed".getBytes(StandardCharsets.UTF_8));
+          }
+        };
+
+    IOException e =
+        assertThrows(IOException.class, () -> node.batch().add("true").add("true").run());
+    assertEquals("batch ended after 0 of 2 commands: mktemp: failed", e.getMessage());
+  }
+
+  @Test
+  void outputTruncatedBetweenCommandsIsReported() {
+    // Cut the output just before the second command's header.
+    Node node = new ShellNode(out -> Arrays.copyOf(out, indexOf(out, "virtualtests-batch-", 1)));
+
+    IOException e =
+        assertThrows(IOException.class, () -> node.batch().add("echo one").add("echo two").run());
+    assertTrue(e.getMessage().startsWith("batch ended after 1 of 2 commands"), e.getMessage());
+  }
+
+  @Test
+  void outputTruncatedWithinCommandIsMalformed() {
+    Node node = new ShellNode(out -> Arrays.copyOf(out, out.length - 2));
+
+    IOException e =
+        assertThrows(IOException.class, () -> node.batch().add("echo one").add("echo two").run());
+    assertTrue(e.getMessage().startsWith("malformed batch output"), e.getMessage());
+  }
+
+  @Test
+  void largeBatchIsNotLimitedByCommandLineLength() throws IOException {
+    // Well past the kernel's 128 KiB limit on a single argument.
+    char[] padding = new char[1024];
+    Arrays.fill(padding, 'x');
+    Node.Batch batch = new ShellNode().batch();
+    for (int i = 0; i < 256; i++) {
+      batch.add("true " + new String(padding));
+    }
+
+    assertEquals(256, batch.run().size());
+  }
+
+  private static int indexOf(byte[] haystack, String needle, int occurrence) {
+    String s = new String(haystack, StandardCharsets.ISO_8859_1);
+    int index = -1;
+    for (int i = 0; i <= occurrence; i++) {
+      index = s.indexOf(needle, index + 1);
+    }
+    return index;
+  }
+
+  /** A node that runs commands in a local shell, optionally rewriting their stdout. */
+  private static class ShellNode extends Node {
+    private final UnaryOperator<byte[]> rewrite;
+
+    private ShellNode() {
+      this(UnaryOperator.identity());
+    }
+
+    private ShellNode(UnaryOperator<byte[]> rewrite) {
+      super(null);
+      this.rewrite = rewrite;
+    }
+
+    @Override
+    public SSHResult ssh(String command, InputStream stdin, long connectionTimeoutMillis)
+        throws IOException {
+      Process process = new ProcessBuilder("sh", "-c", command).start();
+      try (OutputStream in = process.getOutputStream()) {
+        stdin.transferTo(in);
+      }
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      try (InputStream out = process.getInputStream()) {
+        out.transferTo(stdout);
+      }
+      byte[] stderr = process.getErrorStream().readAllBytes();
+      try {
+        return new SSHResult(process.waitFor(), rewrite.apply(stdout.toByteArray()), stderr);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public SSHResult ssh(String command, long connectionTimeoutMillis) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void stop() {}
+  }
+}
@@ -0,0 +1,101 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class ChromeTraceTest {
+  private static final Pattern Event =
+      Pattern.compile("\"name\":\"([^\"]*)\",\"(?:cat|ph)\":\"[^\"]*\".*?\"tid\":(\\d+)");
+
+  @Test
+  void nestedSpansShareARow() throws IOException, InterruptedException {
+    ChromeTrace trace = new ChromeTrace();
+    BuildListener.Span outer = trace.start("reset", Map.of("vmid", "100"));
+    pause();
+    BuildListener.Span inner = trace.start("clone", Map.of("vmid", "100"));
+    pause();
+    inner.close();
+    pause();
+    outer.close();
+
+    Map<String, String> tids = tids(trace);
+    assertEquals(tids.get("reset"), tids.get("clone"));
+    assertEquals("vm 100", tids.get("thread_name " + tids.get("reset")));
+  }
+
+  @Test
+  void overlappingSpansOfOneMachineGetTheirOwnRows() throws IOException, InterruptedException {
+    ChromeTrace trace = new ChromeTrace();
+    BuildListener.Span first = trace.start("ssh.exec", Map.of("vmid", "100"));
+    pause();
+    BuildListener.Span second = trace.start("ssh.upload", Map.of("vmid", "100"));
+    pause();
+    first.close();
+    pause();
+    // Starts once the first has ended, so it can go back on the first row.
+    BuildListener.Span third = trace.start("ssh.download", Map.of("vmid", "100"));
+    pause();
+    third.close();
+    second.close();
+
+    Map<String, String> tids = tids(trace);
+    assertNotEquals(tids.get("ssh.exec"), tids.get("ssh.upload"));
+    assertEquals(tids.get("ssh.exec"), tids.get("ssh.download"));
+    assertEquals("vm 100", tids.get("thread_name " + tids.get("ssh.exec")));
+    assertEquals("vm 100 (2)", tids.get("thread_name " + tids.get("ssh.upload")));
+  }
+
+  @Test
+  void machinesKeepSeparateRows() throws IOException, InterruptedException {
+    ChromeTrace trace = new ChromeTrace();
+    BuildListener.Span a = trace.start("boot", Map.of("vmid", "100"));
+    BuildListener.Span b = trace.start("delete", Map.of("vmid", "101"));
+    pause();
+    a.close();
+    b.close();
+
+    Map<String, String> tids = tids(trace);
+    assertEquals("vm 100", tids.get("thread_name " + tids.get("boot")));
+    assertEquals("vm 101", tids.get("thread_name " + tids.get("delete")));
+  }
+
+  /**
+   * Each span's tid by name, and each row's name under {@code thread_name <tid>}, from the trace as
+   * written.
+   */
+  private static Map<String, String> tids(ChromeTrace trace) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    trace.write(out);
+
+    Map<String, String> tids = new HashMap<>();
+    for (String line : out.toString(StandardCharsets.UTF_8).split("\n")) {
+      Matcher m = Event.matcher(line);
+      if (!m.find()) {
+        continue;
+      }
+      if (m.group(1).equals("thread_name")) {
+        Matcher name = Pattern.compile("\"args\":\\{\"name\":\"([^\"]*)\"").matcher(line);
+        name.find();
+        tids.put("thread_name " + m.group(2), name.group(1));
+      } else {
+        tids.put(m.group(1), m.group(2));
+      }
+    }
+    return tids;
+  }
+
+  /** Let the clock move on by more than the trace's microsecond resolution. */
+  private static void pause() throws InterruptedException {
+    Thread.sleep(2);
+  }
+}
@@ -0,0 +1,90 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+class ClusterPlacementTest {
+  private static final Set<String> both = Set.of("a", "b");
+
+  @Test
+  void spreadPrefersTheNodeWithMostFreeMemory() {
+    ClusterPlacement placement = cluster(8000, 16000);
+
+    assertEquals(
+        List.of("b", "b", "a"),
+        placement.place(requests(6000, 6000, 6000), Proxmox.Placement.SPREAD));
+  }
+
+  @Test
+  void packPrefersTheFullestNodeThatFits() {
+    ClusterPlacement placement = cluster(8000, 16000);
+
+    assertEquals(
+        List.of("a", "b", "b"),
+        placement.place(requests(6000, 6000, 6000), Proxmox.Placement.PACK));
+  }
+
+  @Test
+  void largestRequestsArePlacedFirst() {
+    // In the order given, the small request would take the only node the large one fits on.
+    ClusterPlacement placement = cluster(4000, 8000);
+
+    assertEquals(
+        List.of("a", "b"), placement.place(requests(2000, 8000), Proxmox.Placement.SPREAD));
+  }
+
+  @Test
+  void requestsThatDoNotAllFitCommitNothing() {
+    ClusterPlacement placement = cluster(4000, 4000);
+
+    assertNull(placement.place(requests(3000, 3000, 3000), Proxmox.Placement.SPREAD));
+    assertEquals(
+        List.of("a", "b"), placement.place(requests(4000, 4000), Proxmox.Placement.SPREAD));
+  }
+
+  @Test
+  void coresAndEligibilityLimitPlacement() {
+    ClusterPlacement placement = new ClusterPlacement();
+    placement.addNode("a", 2, 64000);
+    placement.addNode("b", 8, 8000);
+
+    List<ClusterPlacement.Request> requests =
+        List.of(
+            new ClusterPlacement.Request(4, 1000, both),
+            new ClusterPlacement.Request(1, 1000, Set.of("b")));
+    assertEquals(List.of("b", "b"), placement.place(requests, Proxmox.Placement.SPREAD));
+  }
+
+  @Test
+  void releasedCapacityIsReused() {
+    ClusterPlacement placement = cluster(4000, 0);
+
+    assertEquals(List.of("a"), placement.place(requests(4000), Proxmox.Placement.PACK));
+    assertNull(placement.place(requests(4000), Proxmox.Placement.PACK));
+
+    placement.release("a", 1, 4000);
+    assertEquals(List.of("a"), placement.place(requests(4000), Proxmox.Placement.PACK));
+  }
+
+  /** Two nodes, a and b, with plenty of cores and the given memory. */
+  private static ClusterPlacement cluster(long aMemoryMb, long bMemoryMb) {
+    ClusterPlacement placement = new ClusterPlacement();
+    placement.addNode("a", 64, aMemoryMb);
+    placement.addNode("b", 64, bMemoryMb);
+    return placement;
+  }
+
+  /** One core each, with the given memory, and eligible for either node. */
+  private static List<ClusterPlacement.Request> requests(long... memoryMb) {
+    ClusterPlacement.Request[] requests = new ClusterPlacement.Request[memoryMb.length];
+    for (int i = 0; i < memoryMb.length; i++) {
+      requests[i] = new ClusterPlacement.Request(1, memoryMb[i], both);
+    }
+    return List.of(requests);
+  }
+}
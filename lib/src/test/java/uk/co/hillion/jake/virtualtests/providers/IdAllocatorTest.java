@@ -0,0 +1,82 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class IdAllocatorTest {
+  @Test
+  void skipsOccupiedAndReservedIds() throws IOException {
+    IdAllocator ids = new IdAllocator(() -> new HashSet<>(Set.of(100, 101, 103)), 100);
+
+    assertEquals(102, ids.reserve());
+    assertEquals(104, ids.reserve());
+    assertEquals(105, ids.reserve());
+  }
+
+  @Test
+  void releasedIdIsHandedOutAgain() throws IOException {
+    IdAllocator ids = new IdAllocator(() -> new HashSet<>(Set.of(1)), 0);
+
+    assertEquals(0, ids.reserve());
+    assertEquals(2, ids.reserve());
+    ids.release(0);
+    // An id seen occupied on the host is free once released, as it was deleted through us.
+    ids.release(1);
+    assertEquals(0, ids.reserve());
+    assertEquals(1, ids.reserve());
+  }
+
+  @Test
+  void inventoryIsListedOnceUntilInvalidated() throws IOException {
+    AtomicInteger lists = new AtomicInteger();
+    IdAllocator ids =
+        new IdAllocator(
+            () -> {
+              lists.incrementAndGet();
+              return new HashSet<>();
+            },
+            0);
+
+    ids.reserve();
+    ids.reserve();
+    assertEquals(1, lists.get());
+
+    ids.invalidate();
+    ids.reserve();
+    assertEquals(2, lists.get());
+  }
+
+  @Test
+  void reservationsSurviveRefresh() throws IOException {
+    // The host has not seen the reserved id yet, so only the reservation keeps it from reuse.
+    IdAllocator ids = new IdAllocator(HashSet::new, 0);
+
+    assertEquals(0, ids.reserve());
+    ids.invalidate();
+    assertEquals(1, ids.reserve());
+  }
+
+  @Test
+  void failedListingIsRetried() throws IOException {
+    AtomicInteger lists = new AtomicInteger();
+    IdAllocator ids =
+        new IdAllocator(
+            () -> {
+              if (lists.incrementAndGet() == 1) {
+                throw new IOException("unreachable");
+              }
+              return new HashSet<>(Set.of(0));
+            },
+            0);
+
+    assertThrows(IOException.class, ids::reserve);
+    assertEquals(1, ids.reserve());
+  }
+}
@@ -0,0 +1,85 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import uk.co.hillion.jake.virtualtests.structure.Distribution;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+class LayerCacheTest {
+  private static final long Day = 24 * 60 * 60 * 1000;
+
+  @Test
+  void cachesSharingADirectoryKeepEachOthersLayers() throws IOException {
+    Path directory = Files.createTempDirectory("layers");
+    LayerCache first = new LayerCache(directory, 10, Day);
+    LayerCache second = new LayerCache(directory, 10, Day);
+
+    first.commit("a", 100);
+    second.commit("b", 101);
+
+    LayerCache reopened = new LayerCache(directory, 10, Day);
+    assertEquals(Integer.valueOf(100), reopened.lookup("a"));
+    assertEquals(Integer.valueOf(101), reopened.lookup("b"));
+
+    first.refresh();
+    assertEquals(Integer.valueOf(101), first.lookup("b"));
+  }
+
+  @Test
+  void forgettingKeepsLayersRecordedElsewhere() throws IOException {
+    Path directory = Files.createTempDirectory("layers");
+    LayerCache first = new LayerCache(directory, 10, Day);
+    LayerCache second = new LayerCache(directory, 10, Day);
+
+    first.commit("a", 100);
+    second.commit("b", 101);
+    first.forget("a");
+
+    LayerCache reopened = new LayerCache(directory, 10, Day);
+    assertNull(reopened.lookup("a"));
+    assertEquals(Integer.valueOf(101), reopened.lookup("b"));
+  }
+
+  @Test
+  void evictionCountsLayersRecordedElsewhere() throws IOException {
+    Path directory = Files.createTempDirectory("layers");
+    LayerCache first = new LayerCache(directory, 2, Day);
+    LayerCache second = new LayerCache(directory, 2, Day);
+
+    assertEquals(List.of(), first.commit("a", 100));
+    sleep();
+    assertEquals(List.of(), second.commit("b", 101));
+    sleep();
+    assertEquals(List.of(100), first.commit("c", 102));
+  }
+
+  @Test
+  void vmNamesDifferByKey() {
+    Template.SetupFunction noop = (environment, node) -> {};
+    List<String> keys =
+        LayerCache.prefixKeys(
+            Distribution.Debian10,
+            List.of(
+                new Template.SetupStage(noop).withCacheKey("a"),
+                new Template.SetupStage(noop).withCacheKey("b")));
+
+    assertNotEquals(LayerCache.vmName(keys.get(0)), LayerCache.vmName(keys.get(1)));
+  }
+
+  /** Let the clock move on, so layers committed either side are ordered by age. */
+  private static void sleep() throws IOException {
+    try {
+      Thread.sleep(5);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
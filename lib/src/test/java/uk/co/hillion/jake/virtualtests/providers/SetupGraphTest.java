@@ -0,0 +1,196 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import uk.co.hillion.jake.virtualtests.structure.Distribution;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class SetupGraphTest {
+  private static final Provider provider =
+      blueprint -> {
+        throw new UnsupportedOperationException();
+      };
+
+  private static final Template.SetupFunction noop = (environment, node) -> {};
+
+  @Test
+  void barrierWaitsForEveryLowerOrderThroughJoin() throws Exception {
+    List<String> log = Collections.synchronizedList(new ArrayList<>());
+    Template.SetupStage first = new Template.SetupStage(noop, 1);
+    Template.SetupStage second = new Template.SetupStage(noop, 1);
+    Template.SetupStage last = new Template.SetupStage(noop, 2);
+
+    SetupGraph graph =
+        SetupGraph.create(
+            provider, List.of(template(first), template(second), template(last)));
+    assertEquals(3, graph.size());
+
+    run(
+        graph,
+        4,
+        (node, stage) -> {
+          if (stage == last) {
+            log.add("last");
+          } else {
+            sleep(50);
+            log.add("first");
+          }
+        });
+
+    assertEquals(List.of("first", "first", "last"), log);
+  }
+
+  @Test
+  void explicitDependenciesDoNotWaitForLowerOrders() throws Exception {
+    CountDownLatch independentRan = new CountDownLatch(1);
+    Template.SetupStage slow = new Template.SetupStage(noop, 1);
+    Template.SetupStage independent = new Template.SetupStage(noop, 2, List.of());
+
+    SetupGraph graph = SetupGraph.create(provider, List.of(template(slow), template(independent)));
+
+    run(
+        graph,
+        2,
+        (node, stage) -> {
+          if (stage == independent) {
+            independentRan.countDown();
+          } else if (!await(independentRan)) {
+            throw new IOException("independent stage waited for a lower order");
+          }
+        });
+  }
+
+  @Test
+  void explicitDependencyWaitsForEveryInstance() throws Exception {
+    List<String> log = Collections.synchronizedList(new ArrayList<>());
+    Template.SetupStage server = new Template.SetupStage(noop, 1, List.of());
+    Template.SetupStage client = new Template.SetupStage(noop, 1, List.of(server));
+
+    SetupGraph graph =
+        SetupGraph.create(provider, List.of(template(server), template(server), template(client)));
+
+    run(
+        graph,
+        4,
+        (node, stage) -> {
+          if (stage == server) {
+            sleep(20);
+          }
+          log.add(stage == server ? "server" : "client");
+        });
+
+    assertEquals(List.of("server", "server", "client"), log);
+  }
+
+  @Test
+  void longestRemainingPathStartsFirst() throws Exception {
+    List<Integer> nodes = Collections.synchronizedList(new ArrayList<>());
+    Template.SetupStage a = new Template.SetupStage(noop, List.of());
+    Template.SetupStage b = new Template.SetupStage(noop, List.of());
+    Template.SetupStage c = new Template.SetupStage(noop, List.of());
+    Template.SetupStage single = new Template.SetupStage(noop, List.of());
+
+    // The short node comes first, so only priority puts the long chain ahead of it.
+    SetupGraph graph = SetupGraph.create(provider, List.of(template(single), template(a, b, c)));
+
+    run(graph, 1, (node, stage) -> nodes.add(node));
+
+    // Once the chain's remaining path is no longer than the short node's, the earlier stage wins.
+    assertEquals(List.of(1, 1, 0, 1), nodes);
+  }
+
+  @Test
+  void cycleIsImpossible() {
+    // The barrier waits for every order 1 stage, including the one that depends on the barrier.
+    Template.SetupStage barrier = new Template.SetupStage(noop, 2);
+    Template.SetupStage dependent = new Template.SetupStage(noop, 1, List.of(barrier));
+
+    ImpossibleBlueprintException e =
+        assertThrows(
+            ImpossibleBlueprintException.class,
+            () -> SetupGraph.create(provider, List.of(template(dependent), template(barrier))));
+    assertTrue(e.getMessage().contains("cycle"));
+  }
+
+  @Test
+  void dependencyOnMissingStageIsImpossible() {
+    Template.SetupStage missing = new Template.SetupStage(noop, 1);
+    Template.SetupStage dependent = new Template.SetupStage(noop, 2, List.of(missing));
+
+    assertThrows(
+        ImpossibleBlueprintException.class,
+        () -> SetupGraph.create(provider, List.of(template(dependent))));
+  }
+
+  @Test
+  void failureStopsFurtherStages() throws Exception {
+    List<Template.SetupStage> ran = Collections.synchronizedList(new ArrayList<>());
+    Template.SetupStage failing = new Template.SetupStage(noop, 1);
+    Template.SetupStage after = new Template.SetupStage(noop, 2);
+
+    SetupGraph graph = SetupGraph.create(provider, List.of(template(failing, after)));
+
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () ->
+                run(
+                    graph,
+                    2,
+                    (node, stage) -> {
+                      ran.add(stage);
+                      if (stage == failing) {
+                        throw new IOException("failed");
+                      }
+                    }));
+    assertEquals("failed", e.getMessage());
+    assertEquals(List.of(failing), ran);
+  }
+
+  private static void run(SetupGraph graph, int parallelism, SetupGraph.StageRunner runner)
+      throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      graph.run(executor, parallelism, runner);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Template template(Template.SetupStage... stages) {
+    return new Template(Distribution.Debian10) {
+      @Override
+      public List<SetupStage> getSetup() {
+        return List.of(stages);
+      }
+    };
+  }
+
+  private static boolean await(CountDownLatch latch) throws IOException {
+    try {
+      return latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void sleep(long millis) throws IOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
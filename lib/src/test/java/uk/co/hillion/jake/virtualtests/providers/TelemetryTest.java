@@ -0,0 +1,140 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+class TelemetryTest {
+  @Test
+  void samplesAreTakenBetweenConsecutiveSnapshots() throws IOException {
+    List<Telemetry.Sample> samples =
+        run(
+            snapshot(100, "cpu  100 0 100 700 100 0 0 0 0 0", 400, 1000, 2000, 1000, 3000),
+            snapshot(102, "cpu  400 0 200 1200 200 0 0 0 0 0", 400, 3000, 3000, 5000, 4000));
+
+    assertEquals(1, samples.size());
+    Telemetry.Sample s = samples.get(0);
+    assertEquals(40.0, s.getCpuBusyPercent(), 0.001);
+    assertEquals(10.0, s.getCpuIowaitPercent(), 0.001);
+    assertEquals(600 * 1024, s.getMemoryUsedBytes());
+    assertEquals(1000 * 1024, s.getMemoryTotalBytes());
+    // Partitions, virtual disks and loopback are not counted, though they change too.
+    assertEquals(512000.0, s.getDiskReadBytesPerSecond(), 0.001);
+    assertEquals(256000.0, s.getDiskWriteBytesPerSecond(), 0.001);
+    assertEquals(2000.0, s.getNetworkReceiveBytesPerSecond(), 0.001);
+    assertEquals(500.0, s.getNetworkTransmitBytesPerSecond(), 0.001);
+  }
+
+  @Test
+  void malformedSnapshotsAndRebootsAreSkipped() throws IOException {
+    String cpu = "cpu  100 0 100 700 100 0 0 0 0 0";
+    List<Telemetry.Sample> samples =
+        run(
+            snapshot(100, cpu, 400, 0, 0, 0, 0),
+            "@uptime\nnot a number\n@end\n",
+            // Uptime going backwards means the node rebooted, so its counters started again.
+            snapshot(5, cpu, 400, 0, 0, 0, 0),
+            snapshot(6, cpu, -1, 0, 0, 0, 0));
+
+    assertEquals(1, samples.size());
+    // Without MemAvailable, free memory is MemFree, Buffers and Cached: 100, 50 and 150.
+    assertEquals(700 * 1024, samples.get(0).getMemoryUsedBytes());
+  }
+
+  @Test
+  void samplesAreWrittenAsCsv() throws IOException {
+    String cpu = "cpu  100 0 100 700 100 0 0 0 0 0";
+    Telemetry telemetry =
+        start(snapshot(100, cpu, 400, 0, 0, 0, 0), snapshot(101, cpu, 400, 2, 4, 8, 16));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    telemetry.write(out);
+    String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+
+    assertEquals(2, lines.length);
+    assertEquals(9, lines[0].split(",").length);
+    String row = lines[1].substring(lines[1].indexOf(','));
+    assertEquals(",0.00,0.00,614400,1024000,1024,2048,8,16", row);
+  }
+
+  private static List<Telemetry.Sample> run(String... snapshots) throws IOException {
+    return start(snapshots).getSamples();
+  }
+
+  /** Start telemetry on a node whose sampler prints the given snapshots and exits. */
+  private static Telemetry start(String... snapshots) throws IOException {
+    String output = "@pid 42\n" + String.join("", snapshots);
+    Telemetry telemetry = Telemetry.start(new FixedNode(output), 1000, 5000);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (telemetry.isRunning() && System.currentTimeMillis() < deadline) {
+      Thread.onSpinWait();
+    }
+    assertFalse(telemetry.isRunning());
+    return telemetry;
+  }
+
+  /**
+   * A snapshot with one disk, vda, and one interface, eth0, along with a partition, a virtual disk
+   * and loopback whose counters are ten times theirs. A negative MemAvailable is left out.
+   */
+  private static String snapshot(
+      double uptime, String cpu, long available, long read, long written, long rx, long tx) {
+    StringBuilder b = new StringBuilder();
+    b.append("@uptime\n").append(uptime).append(" 1.00\n");
+    b.append("@stat\n").append(cpu).append('\n');
+    b.append("@meminfo\nMemTotal:        1000 kB\nMemFree:          100 kB\n");
+    if (available >= 0) {
+      b.append("MemAvailable:     ").append(available).append(" kB\n");
+    }
+    b.append("Buffers:           50 kB\nCached:           150 kB\n");
+    b.append("@diskstats\n");
+    b.append(diskstats("vda", read, written));
+    b.append(diskstats("vda1", read * 10, written * 10));
+    b.append(diskstats("loop0", read * 10, written * 10));
+    b.append("@net\n");
+    b.append("Inter-|   Receive                            |  Transmit\n");
+    b.append(" face |bytes    packets errs drop fifo frame compressed multicast|bytes\n");
+    b.append(netDev("lo", rx * 10, tx * 10));
+    b.append(netDev("eth0", rx, tx));
+    b.append("@end\n");
+    return b.toString();
+  }
+
+  private static String diskstats(String name, long read, long written) {
+    return String.format(" 253       0 %s 10 0 %d 0 20 0 %d 0 0 0 0%n", name, read, written);
+  }
+
+  private static String netDev(String name, long rx, long tx) {
+    return String.format("%6s: %d 10 0 0 0 0 0 0 %d 20 0 0 0 0 0 0%n", name, rx, tx);
+  }
+
+  private static class FixedNode extends Node {
+    private final String stdout;
+
+    private FixedNode(String stdout) {
+      super(null);
+      this.stdout = stdout;
+    }
+
+    @Override
+    public SSHResult ssh(String command, long connectionTimeoutMillis) {
+      return new SSHResult(0, stdout.getBytes(StandardCharsets.UTF_8), new byte[0]);
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void stop() {}
+  }
+}
@@ -0,0 +1,170 @@
+package uk.co.hillion.jake.virtualtests.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import uk.co.hillion.jake.virtualtests.structure.Distribution;
+import uk.co.hillion.jake.virtualtests.structure.Template;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+class UpdatePlanTest {
+  private static final Provider provider =
+      blueprint -> {
+        throw new UnsupportedOperationException();
+      };
+
+  private static final Template.SetupFunction noop = (environment, node) -> {};
+
+  private static final BiPredicate<Template, Template> always = (from, to) -> true;
+
+  @Test
+  void unchangedTemplatesAreKeptInPlace() {
+    Template.SetupStage stage = new Template.SetupStage(noop, 1);
+    Template a = new TestTemplate("a", 1, stage);
+    Template b = new TestTemplate("b", 1, stage);
+
+    UpdatePlan plan =
+        UpdatePlan.create(List.of(a, b), List.of(new TestTemplate("a", 1, stage), b, b), always);
+
+    assertEquals(
+        List.of(UpdatePlan.Action.KEEP, UpdatePlan.Action.KEEP, UpdatePlan.Action.ADD),
+        actions(plan));
+    assertEquals(List.of(0, 1, -1), sources(plan));
+    assertEquals(List.of(), plan.getRemoved());
+  }
+
+  @Test
+  void exactMatchesAreMadeBeforeReconfiguring() {
+    Template.SetupStage stage = new Template.SetupStage(noop, 1);
+
+    // In order, the first new template would reconfigure the node the second matches exactly.
+    UpdatePlan plan =
+        UpdatePlan.create(
+            List.of(new TestTemplate("a", 2, stage), new TestTemplate("a", 4, stage)),
+            List.of(new TestTemplate("a", 8, stage), new TestTemplate("a", 2, stage)),
+            always);
+
+    assertEquals(List.of(UpdatePlan.Action.RECONFIGURE, UpdatePlan.Action.KEEP), actions(plan));
+    assertEquals(List.of(1, 0), sources(plan));
+  }
+
+  @Test
+  void nodesThatCannotBeReconfiguredAreReplaced() {
+    Template.SetupStage stage = new Template.SetupStage(noop, 1);
+
+    UpdatePlan plan =
+        UpdatePlan.create(
+            List.of(new TestTemplate("a", 2, stage), new TestTemplate("b", 2, stage)),
+            List.of(new TestTemplate("a", 4, stage)),
+            (from, to) -> false);
+
+    assertEquals(List.of(UpdatePlan.Action.ADD), actions(plan));
+    assertEquals(List.of(0, 1), plan.getRemoved());
+  }
+
+  @Test
+  void nodeDependingOnAnAddedNodeIsReplaced() throws Exception {
+    Template.SetupStage server = new Template.SetupStage(noop, 1, List.of());
+    Template.SetupStage client = new Template.SetupStage(noop, 1, List.of(server));
+    Template.SetupStage other = new Template.SetupStage(noop, 1, List.of());
+    Template c = new TestTemplate("client", 1, client);
+    Template o = new TestTemplate("other", 1, other);
+
+    List<Template> desired = List.of(new TestTemplate("server", 2, server), c, o);
+    UpdatePlan plan =
+        UpdatePlan.create(
+            List.of(new TestTemplate("server", 1, server), c, o), desired, (from, to) -> false);
+    plan.replaceDependents(SetupGraph.create(provider, desired));
+
+    assertEquals(
+        List.of(UpdatePlan.Action.ADD, UpdatePlan.Action.ADD, UpdatePlan.Action.KEEP),
+        actions(plan));
+    assertEquals(List.of(0, 1), plan.getRemoved());
+  }
+
+  @Test
+  void barrierAfterAnAddedNodesStagesIsReplaced() throws Exception {
+    Template.SetupStage first = new Template.SetupStage(noop, 1);
+    Template.SetupStage barrier = new Template.SetupStage(noop, 2);
+    Template kept = new TestTemplate("kept", 1, first, barrier);
+    Template independent = new TestTemplate("independent", 1, first);
+
+    List<Template> desired = List.of(kept, independent, new TestTemplate("new", 1, first));
+    UpdatePlan plan = UpdatePlan.create(List.of(kept, independent), desired, always);
+    plan.replaceDependents(SetupGraph.create(provider, desired));
+
+    assertEquals(
+        List.of(UpdatePlan.Action.ADD, UpdatePlan.Action.KEEP, UpdatePlan.Action.ADD),
+        actions(plan));
+  }
+
+  @Test
+  void replacementsAffectTheirOwnDependents() throws Exception {
+    // b's second stage depends on a, and c depends on b's first stage, so c is only affected once b
+    // is replaced.
+    Template.SetupStage a = new Template.SetupStage(noop, 1, List.of());
+    Template.SetupStage b1 = new Template.SetupStage(noop, 1, List.of());
+    Template.SetupStage b2 = new Template.SetupStage(noop, 2, List.of(a));
+    Template.SetupStage c = new Template.SetupStage(noop, 1, List.of(b1));
+    Template tb = new TestTemplate("b", 1, b1, b2);
+    Template tc = new TestTemplate("c", 1, c);
+
+    List<Template> desired = List.of(new TestTemplate("a", 2, a), tb, tc);
+    UpdatePlan plan =
+        UpdatePlan.create(
+            List.of(new TestTemplate("a", 1, a), tb, tc), desired, (from, to) -> false);
+    plan.replaceDependents(SetupGraph.create(provider, desired));
+
+    assertEquals(
+        List.of(UpdatePlan.Action.ADD, UpdatePlan.Action.ADD, UpdatePlan.Action.ADD),
+        actions(plan));
+    assertEquals(List.of(0, 1, 2), plan.getRemoved());
+  }
+
+  private static List<UpdatePlan.Action> actions(UpdatePlan plan) {
+    List<UpdatePlan.Action> actions = new ArrayList<>();
+    for (int i = 0; i < plan.size(); i++) {
+      actions.add(plan.getAction(i));
+    }
+    return actions;
+  }
+
+  private static List<Integer> sources(UpdatePlan plan) {
+    List<Integer> sources = new ArrayList<>();
+    for (int i = 0; i < plan.size(); i++) {
+      sources.add(plan.getSource(i));
+    }
+    return sources;
+  }
+
+  private static class TestTemplate extends Template {
+    private final String name;
+    private final int cores;
+    private final List<SetupStage> stages;
+
+    private TestTemplate(String name, int cores, SetupStage... stages) {
+      super(Distribution.Debian10);
+      this.name = name;
+      this.cores = cores;
+      this.stages = List.of(stages);
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public int getCoreCount() {
+      return cores;
+    }
+
+    @Override
+    public List<SetupStage> getSetup() {
+      return stages;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package uk.co.hillion.jake.virtualtests.sharding;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class WorkQueueTest {
+  @Test
+  void dealsLongestFirstToTheLeastLoadedShard() {
+    // 8 and 5 open the shards, 4 joins 5, 2 joins 8 and 1 joins the shard left at 9.
+    WorkQueue<Integer> queue = new WorkQueue<>(List.of(1, 2, 4, 5, 8), Integer::longValue, 2);
+
+    assertEquals(List.of(8, 2), take(queue, 0, 0));
+    assertEquals(List.of(5, 4, 1), take(queue, 1, 1, 1));
+    assertNull(queue.next(0));
+    assertNull(queue.next(1));
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  void idleShardStealsTheShortestTaskOfTheBusiestShard() {
+    // Shard 0 holds [8], shard 1 holds [5, 2, 1] and shard 2 holds [4, 3].
+    WorkQueue<Integer> queue = new WorkQueue<>(List.of(1, 2, 3, 4, 5, 8), Integer::longValue, 3);
+
+    // Shard 0 steals from shard 1 at 8 against 7, again at a tie of 7 as the first, then from 2.
+    assertEquals(List.of(8, 1, 2, 3), take(queue, 0, 0, 0, 0));
+    assertEquals(List.of(5, 4), take(queue, 1, 2));
+    assertNull(queue.next(0));
+  }
+
+  @Test
+  void everyTaskIsHandedOutOnce() {
+    List<Integer> tasks = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      tasks.add(i % 7);
+    }
+    WorkQueue<Integer> queue = new WorkQueue<>(tasks, Integer::longValue, 4);
+
+    List<Integer> taken = new ArrayList<>();
+    for (int shard = 0; !queue.isEmpty(); shard = (shard + 3) % 4) {
+      taken.add(queue.next(shard));
+    }
+
+    taken.sort(null);
+    List<Integer> expected = new ArrayList<>(tasks);
+    expected.sort(null);
+    assertEquals(expected, taken);
+  }
+
+  @Test
+  void drainRemovesTasksNotHandedOut() {
+    WorkQueue<Integer> queue = new WorkQueue<>(List.of(3, 2, 1), Integer::longValue, 1);
+
+    assertEquals(List.of(3), take(queue, 0));
+    assertFalse(queue.isEmpty());
+    assertEquals(List.of(2, 1), queue.drain());
+    assertTrue(queue.isEmpty());
+    assertNull(queue.next(0));
+  }
+
+  @Test
+  void moreShardsThanTasks() {
+    WorkQueue<Integer> queue = new WorkQueue<>(List.of(1), Integer::longValue, 3);
+
+    assertEquals(List.of(1), take(queue, 2));
+    assertNull(queue.next(0));
+  }
+
+  /** Take one task for each of the given shards in turn. */
+  private static List<Integer> take(WorkQueue<Integer> queue, int... shards) {
+    List<Integer> taken = new ArrayList<>();
+    for (int shard : shards) {
+      taken.add(queue.next(shard));
+    }
+    return taken;
+  }
+}